@@ -0,0 +1,155 @@
+package petpet.external;
+
+import petpet.lang.run.PetPetFunction;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of compiled scripts, so running the same source
+ * again skips lexing, parsing and compiling. Compiled functions aren't
+ * tied to an interpreter, so one cache can be shared between any number
+ * of PetPetInstances, on any number of threads.
+ *
+ * Entries are keyed by a SHA-256 hash of the source along with the script
+ * name, since the name is baked into the compiled function (it shows up in
+ * stack traces), and whether the function went through the optimizer.
+ * Least recently used entries are evicted once either the entry count or
+ * the total bytecode size goes over its limit.
+ */
+public class CompileCache {
+
+    private final int maxEntries;
+    private final long maxBytecodeSize;
+
+    //Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytecodeSize;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public CompileCache(int maxEntries) {
+        this(maxEntries, Long.MAX_VALUE);
+    }
+
+    public CompileCache(int maxEntries, long maxBytecodeSize) {
+        if (maxEntries <= 0 || maxBytecodeSize <= 0)
+            throw new IllegalArgumentException("Compile cache limits must be positive");
+        this.maxEntries = maxEntries;
+        this.maxBytecodeSize = maxBytecodeSize;
+    }
+
+    /**
+     * Hashes the source, making a key to use for get() and put(), for a function compiled with the optimizer on.
+     */
+    public Key keyFor(String scriptName, String source) {
+        return keyFor(scriptName, source, true);
+    }
+
+    /**
+     * Hashes the source, making a key to use for get() and put().
+     */
+    public Key keyFor(String scriptName, String source, boolean optimized) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+            return new Key(scriptName, optimized, source.length(), readLong(hash, 0), readLong(hash, 8), readLong(hash, 16), readLong(hash, 24));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+
+    /**
+     * Returns the cached function for the key, or null if there isn't one.
+     * Counts as a hit or a miss.
+     */
+    public synchronized PetPetFunction get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.function;
+    }
+
+    /**
+     * Stores the function under the key, evicting old entries if needed.
+     * If another thread already stored a function for this key, that one
+     * is kept and returned instead, so everyone ends up sharing it.
+     */
+    public synchronized PetPetFunction put(Key key, PetPetFunction function) {
+        Entry existing = entries.get(key);
+        if (existing != null)
+            return existing.function;
+        Entry entry = new Entry(function, sizeOf(function));
+        entries.put(key, entry);
+        bytecodeSize += entry.size;
+
+        //Evict least recently used, but never the entry we just added
+        Iterator<Map.Entry<Key, Entry>> iter = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytecodeSize > maxBytecodeSize) && entries.size() > 1) {
+            Entry evicted = iter.next().getValue();
+            iter.remove();
+            bytecodeSize -= evicted.size;
+            evictions.increment();
+        }
+        return function;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytecodeSize = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long bytecodeSize() {
+        return bytecodeSize;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "CompileCache(size=" + size() + ", hits=" + hits() + ", misses=" + misses() + ", evictions=" + evictions() + ")";
+    }
+
+    //Bytes of bytecode in the function and everything nested inside it
+    private static long sizeOf(PetPetFunction function) {
+        long size = function.chunk().bytes.length;
+        for (Object constant : function.chunk().constants)
+            if (constant instanceof PetPetFunction nested)
+                size += sizeOf(nested);
+        return size;
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = offset; i < offset + 8; i++)
+            result = (result << 8) | (bytes[i] & 0xff);
+        return result;
+    }
+
+    public record Key(String scriptName, boolean optimized, int sourceLength, long hash0, long hash1, long hash2, long hash3) {}
+
+    private record Entry(PetPetFunction function, long size) {}
+}
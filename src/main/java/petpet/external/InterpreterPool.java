@@ -0,0 +1,77 @@
+package petpet.external;
+
+import petpet.lang.compile.Compiler;
+import petpet.lang.lex.Lexer;
+import petpet.lang.parse.Parser;
+import petpet.lang.run.PetPetClosure;
+import petpet.lang.run.PetPetFunction;
+
+/**
+ * Runs scripts on any number of threads at once, without locking.
+ *
+ * An Interpreter can only be used by one thread at a time, so each thread
+ * gets its own PetPetInstance, created from a snapshot the first time that
+ * thread uses the pool. Compiled PetPetFunctions are immutable and shared
+ * by everyone, through the pool's compile cache; running one just binds a
+ * new closure to the current thread's interpreter.
+ *
+ * Globals set by a script stay around for later scripts on the same thread.
+ * Call reset() between requests if they need to start from a clean state.
+ */
+public class InterpreterPool {
+
+    private final PetPetSnapshot snapshot;
+    public final CompileCache compileCache;
+    private final ThreadLocal<PetPetInstance> instances;
+
+    public InterpreterPool(PetPetSnapshot snapshot) {
+        this(snapshot, snapshot.compileCache != null ? snapshot.compileCache : new CompileCache(256));
+    }
+
+    public InterpreterPool(PetPetSnapshot snapshot, CompileCache compileCache) {
+        this.snapshot = snapshot;
+        this.compileCache = compileCache;
+        this.instances = ThreadLocal.withInitial(this::newInstance);
+    }
+
+    private PetPetInstance newInstance() {
+        PetPetInstance instance = new PetPetInstance(snapshot);
+        instance.compileCache = compileCache;
+        return instance;
+    }
+
+    /**
+     * The current thread's instance. Don't hand it to other threads.
+     */
+    public PetPetInstance get() {
+        return instances.get();
+    }
+
+    /**
+     * Throws away the current thread's instance, so the next
+     * use starts again from a fresh copy of the snapshot.
+     */
+    public void reset() {
+        instances.remove();
+    }
+
+    /**
+     * Compiles a script, or gets it from the cache. The result
+     * isn't tied to any thread, and can be run from any of them.
+     */
+    public PetPetFunction compile(String name, String script) throws Lexer.LexingException, Parser.ParserException, Compiler.CompilationException {
+        return get().compileFunction(name, script);
+    }
+
+    /**
+     * Runs a compiled function on the current thread's interpreter.
+     */
+    public Object run(PetPetFunction function, Object... args) {
+        return new PetPetClosure(function, get().interpreter).call(args);
+    }
+
+    public Object runScript(String name, String script, Object... args) throws Lexer.LexingException, Parser.ParserException, Compiler.CompilationException {
+        return get().runScript(name, script, args);
+    }
+
+}
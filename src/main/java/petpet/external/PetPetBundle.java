@@ -0,0 +1,276 @@
+package petpet.external;
+
+import petpet.lang.compile.Chunk;
+import petpet.lang.run.PetPetFunction;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A file holding many compiled scripts, along with an index
+ * to find them by name. The file is memory mapped when opened,
+ * and nothing is decoded until it's asked for: looking up a
+ * script only decodes that script's header, and the bytecode of
+ * each function (including nested ones) is only decoded the first
+ * time one of its closures is called.
+ *
+ * Layout, all big endian:
+ * magic, version, script count,
+ * index entries sorted by name: (name offset, function offset),
+ * then the names and functions themselves.
+ */
+public class PetPetBundle {
+
+    private static final int MAGIC = 0x5050424E; //"PPBN"
+    private static final short VERSION = 4;
+    private static final int HEADER_SIZE = 10;
+    private static final int INDEX_ENTRY_SIZE = 8;
+
+    //Constant tags
+    private static final byte DOUBLE = 0;
+    private static final byte STRING = 1;
+    private static final byte BOOLEAN = 2;
+    private static final byte FUNCTION = 3;
+    private static final byte LONG = 4;
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final Map<String, PetPetFunction> loaded = new ConcurrentHashMap<>();
+
+    private PetPetBundle(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a PetPet bundle file");
+        if (buffer.getShort(4) != VERSION)
+            throw new IOException("Unsupported PetPet bundle version " + buffer.getShort(4) + ", expected " + VERSION);
+        count = buffer.getInt(6);
+    }
+
+    /**
+     * Maps the given file into memory and reads its header. The
+     * file should not be modified while the bundle is in use.
+     */
+    public static PetPetBundle open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            //The mapping stays valid after the channel is closed
+            return new PetPetBundle(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Wraps bytes that were already loaded some other way.
+     */
+    public static PetPetBundle wrap(ByteBuffer buffer) throws IOException {
+        return new PetPetBundle(buffer.asReadOnlyBuffer());
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean has(String name) {
+        return indexOf(name) != -1;
+    }
+
+    /**
+     * Gets the compiled script with the given name, or null if the bundle
+     * doesn't contain it. The returned function is shared, so repeated
+     * lookups of the same name don't decode anything again.
+     */
+    public PetPetFunction getFunction(String name) {
+        PetPetFunction result = loaded.get(name);
+        if (result != null)
+            return result;
+        int index = indexOf(name);
+        if (index == -1)
+            return null;
+        ByteBuffer reader = buffer.duplicate();
+        reader.position(buffer.getInt(HEADER_SIZE + index * INDEX_ENTRY_SIZE + 4));
+        result = readFunction(reader);
+        PetPetFunction prev = loaded.putIfAbsent(name, result);
+        return prev != null ? prev : result;
+    }
+
+    /**
+     * The names of all scripts in the bundle, in sorted order.
+     * This decodes every name, so it's meant for tooling rather than startup.
+     */
+    public List<String> names() {
+        List<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            result.add(nameAt(i));
+        return result;
+    }
+
+    //Binary search over the sorted index, only decoding the names we compare against
+    private int indexOf(String name) {
+        int lo = 0, hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = nameAt(mid).compareTo(name);
+            if (cmp == 0) return mid;
+            if (cmp < 0) lo = mid + 1;
+            else hi = mid - 1;
+        }
+        return -1;
+    }
+
+    private String nameAt(int index) {
+        ByteBuffer reader = buffer.duplicate();
+        reader.position(buffer.getInt(HEADER_SIZE + index * INDEX_ENTRY_SIZE));
+        return readString(reader);
+    }
+
+    //Decodes the header of a function, and leaves the reader positioned just after it.
+    //The chunk itself is skipped over, and decoded later by the loader.
+    private PetPetFunction readFunction(ByteBuffer reader) {
+        String name = readString(reader);
+        int lineNumberOffset = reader.getInt();
+        int paramCount = reader.getInt();
+        int numUpvalues = reader.getInt();
+        boolean isGenerator = reader.get() != 0;
+        int[] lineNumberTable = new int[reader.getInt()];
+        for (int i = 0; i < lineNumberTable.length; i++)
+            lineNumberTable[i] = reader.getInt();
+        int chunkLength = reader.getInt();
+        int chunkStart = reader.position();
+        reader.position(chunkStart + chunkLength);
+        return new PetPetFunction(name, () -> readChunk(chunkStart), lineNumberOffset, lineNumberTable, paramCount, numUpvalues, isGenerator);
+    }
+
+    private Chunk readChunk(int offset) {
+        ByteBuffer reader = buffer.duplicate();
+        reader.position(offset);
+        Object[] constants = new Object[reader.getInt()];
+        for (int i = 0; i < constants.length; i++) {
+            byte tag = reader.get();
+            constants[i] = switch (tag) {
+                case DOUBLE -> reader.getDouble();
+                case LONG -> reader.getLong();
+                case STRING -> readString(reader);
+                case BOOLEAN -> reader.get() != 0;
+                case FUNCTION -> readFunction(reader);
+                default -> throw new IllegalStateException("Corrupted PetPet bundle, unknown constant tag " + tag);
+            };
+        }
+        byte[] bytes = new byte[reader.getInt()];
+        reader.get(bytes);
+        return new Chunk(constants, bytes);
+    }
+
+    private static String readString(ByteBuffer reader) {
+        byte[] bytes = new byte[reader.getInt()];
+        reader.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Collects compiled scripts, then writes them all out as one bundle.
+     * Adding a script forces all of its chunks to be decoded, so writing
+     * a bundle from another bundle's functions works, but isn't lazy.
+     */
+    public static class Writer {
+        private final SortedMap<String, PetPetFunction> scripts = new TreeMap<>();
+
+        public Writer add(String name, PetPetFunction function) {
+            if (scripts.containsKey(name))
+                throw new IllegalArgumentException("Bundle already contains a script named \"" + name + "\"");
+            scripts.put(name, function);
+            return this;
+        }
+
+        public void write(Path path) throws IOException {
+            try (OutputStream out = Files.newOutputStream(path)) {
+                write(out);
+            }
+        }
+
+        public void write(OutputStream stream) throws IOException {
+            //Encode names and functions first so the index can point at them
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream bodyOut = new DataOutputStream(body);
+            int bodyStart = HEADER_SIZE + scripts.size() * INDEX_ENTRY_SIZE;
+            int[] nameOffsets = new int[scripts.size()];
+            int[] functionOffsets = new int[scripts.size()];
+            int i = 0;
+            for (Map.Entry<String, PetPetFunction> entry : scripts.entrySet()) {
+                nameOffsets[i] = bodyStart + bodyOut.size();
+                writeString(bodyOut, entry.getKey());
+                functionOffsets[i] = bodyStart + bodyOut.size();
+                writeFunction(bodyOut, entry.getValue());
+                i++;
+            }
+
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(scripts.size());
+            for (int j = 0; j < nameOffsets.length; j++) {
+                out.writeInt(nameOffsets[j]);
+                out.writeInt(functionOffsets[j]);
+            }
+            body.writeTo(out);
+            out.flush();
+        }
+
+        private static void writeFunction(DataOutputStream out, PetPetFunction function) throws IOException {
+            writeString(out, function.name);
+            out.writeInt(function.lineNumberOffset);
+            out.writeInt(function.paramCount);
+            out.writeInt(function.numUpvalues);
+            out.writeByte(function.isGenerator ? 1 : 0);
+            out.writeInt(function.lineNumberTable.length);
+            for (int line : function.lineNumberTable)
+                out.writeInt(line);
+
+            //Chunk is length-prefixed, so readers can skip it until it's needed
+            ByteArrayOutputStream chunkBytes = new ByteArrayOutputStream();
+            writeChunk(new DataOutputStream(chunkBytes), function.chunk());
+            out.writeInt(chunkBytes.size());
+            chunkBytes.writeTo(out);
+        }
+
+        private static void writeChunk(DataOutputStream out, Chunk chunk) throws IOException {
+            out.writeInt(chunk.constants.length);
+            for (Object constant : chunk.constants) {
+                if (constant instanceof Double d) {
+                    out.writeByte(DOUBLE);
+                    out.writeDouble(d);
+                } else if (constant instanceof Long l) {
+                    out.writeByte(LONG);
+                    out.writeLong(l);
+                } else if (constant instanceof String s) {
+                    out.writeByte(STRING);
+                    writeString(out, s);
+                } else if (constant instanceof Boolean b) {
+                    out.writeByte(BOOLEAN);
+                    out.writeByte(b ? 1 : 0);
+                } else if (constant instanceof PetPetFunction f) {
+                    out.writeByte(FUNCTION);
+                    writeFunction(out, f);
+                } else {
+                    throw new IllegalArgumentException("Cannot write constant " + constant + " to a bundle");
+                }
+            }
+            out.writeInt(chunk.bytes.length);
+            out.write(chunk.bytes);
+        }
+
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+}
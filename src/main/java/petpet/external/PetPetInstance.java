@@ -4,6 +4,7 @@ import petpet.types.immutable.PetPetListView;
 import petpet.types.immutable.PetPetTableView;
 import petpet.types.libraries.GlobalFunctions;
 import petpet.types.PetPetList;
+import petpet.types.PetPetStream;
 import petpet.types.PetPetString;
 import petpet.types.PetPetTable;
 import petpet.lang.compile.Compiler;
@@ -25,12 +26,47 @@ import java.util.Map;
 public class PetPetInstance {
     public final Interpreter interpreter;
     public boolean debugTime, debugBytecode, debugCost;
+    //Whether compiled scripts go through the Optimizer, and whether to print what it makes of each function
+    public boolean optimize = true, debugIR;
+
+    //If non-null, compiled scripts are looked up here before compiling,
+    //and stored here afterwards. Can be shared between instances.
+    public CompileCache compileCache;
+
+    //Kept so snapshots can swap them for ones bound to the new interpreter
+    final JavaFunction printFunc, printStackFunc;
 
     public PetPetInstance() {
         this.interpreter = new Interpreter();
+        printFunc = GlobalFunctions.getPrintFunction(interpreter);
+        printStackFunc = GlobalFunctions.getPrintStackFunction(interpreter);
         loadBuiltinLibrary();
     }
 
+    /**
+     * Creates an instance from a frozen snapshot, which is much cheaper
+     * than loading the builtin library from scratch. The new instance starts
+     * out with its own copies of the snapshot's classes and globals, and shares
+     * its compile cache, if it had one.
+     */
+    public PetPetInstance(PetPetSnapshot snapshot) {
+        this.interpreter = new Interpreter();
+        printFunc = GlobalFunctions.getPrintFunction(interpreter);
+        printStackFunc = GlobalFunctions.getPrintStackFunction(interpreter);
+        compileCache = snapshot.compileCache;
+        snapshot.copyInto(this);
+    }
+
+    /**
+     * Takes a snapshot of this instance's current classes and globals, to
+     * create more instances from later. Set things up (register classes, set
+     * globals, run setup scripts) before freezing. Changes to this instance
+     * after freezing don't affect the snapshot, and vice versa.
+     */
+    public PetPetSnapshot freeze() {
+        return new PetPetSnapshot(this);
+    }
+
     /**
      * Compiles the given string into a closure
      * and runs it immediately.
@@ -47,18 +83,57 @@ public class PetPetInstance {
     }
 
     public PetPetClosure compile(String name, String script) throws Lexer.LexingException, Parser.ParserException, Compiler.CompilationException {
+        return new PetPetClosure(compileFunction(name, script), interpreter);
+    }
+
+    /**
+     * Compiles the given string into a function, which isn't tied
+     * to any interpreter, so it can be shared or written to a bundle.
+     */
+    public PetPetFunction compileFunction(String name, String script) throws Lexer.LexingException, Parser.ParserException, Compiler.CompilationException {
+        CompileCache.Key cacheKey = null;
+        if (compileCache != null && !debugIR) { //A cached function wouldn't print its IR
+            cacheKey = compileCache.keyFor(name, script, optimize);
+            PetPetFunction cached = compileCache.get(cacheKey);
+            if (cached != null)
+                return cached;
+        }
+
         long before = 0;
         if (debugTime) before = System.nanoTime();
 
         Lexer.Token[] toks = Lexer.lex(script);
         List<Expression> exprs = new Parser(toks).parseChunk();
         Compiler comp = new Compiler(null, name);
-        new Expression.BlockExpression(0, exprs).compile(comp);
+        comp.optimize = optimize;
+        comp.dumpIR = debugIR;
+        new Expression.BlockExpression(0, exprs).compileTail(comp);
         PetPetFunction compiled = comp.finish(name, 0, 0);
 
         if (debugTime) System.out.println((System.nanoTime() - before) / 1000000d + " ms to compile ");
         if (debugBytecode) System.out.println(compiled.prettyBytecode());
-        return new PetPetClosure(compiled, interpreter);
+        if (cacheKey != null)
+            compiled = compileCache.put(cacheKey, compiled);
+        return compiled;
+    }
+
+    /**
+     * Gets the script with the given name out of the bundle, as a closure
+     * for this instance. Returns null if the bundle has no such script.
+     */
+    public PetPetClosure load(PetPetBundle bundle, String scriptName) {
+        PetPetFunction function = bundle.getFunction(scriptName);
+        return function == null ? null : new PetPetClosure(function, interpreter);
+    }
+
+    /**
+     * Runs the script with the given name out of the bundle.
+     */
+    public Object runBundled(PetPetBundle bundle, String scriptName, Object... args) {
+        PetPetClosure closure = load(bundle, scriptName);
+        if (closure == null)
+            throw new IllegalArgumentException("Bundle has no script named \"" + scriptName + "\"");
+        return closure.call(args);
     }
 
     public void setGlobal(String key, Object value) {
@@ -70,7 +145,9 @@ public class PetPetInstance {
     }
 
     private void loadBuiltinLibrary() {
-        interpreter.classMap.put(Double.class, new PetPetClass("num").makeEditable());
+        PetPetClass numClass = new PetPetClass("num").makeEditable();
+        interpreter.classMap.put(Double.class, numClass);
+        interpreter.classMap.put(Long.class, numClass); //integers
         interpreter.classMap.put(Boolean.class, new PetPetClass("bool").makeEditable());
         interpreter.classMap.put(String.class, PetPetString.STRING_CLASS.copy().makeEditable());
         interpreter.classMap.put(PetPetCallable.class, PetPetReflector.reflect(PetPetCallable.class, "fn").copy().makeEditable());
@@ -80,13 +157,15 @@ public class PetPetInstance {
         interpreter.classMap.put(PetPetListView.class, PetPetListView.LIST_VIEW_CLASS.copy().makeEditable());
         interpreter.classMap.put(PetPetTable.class, PetPetTable.TABLE_CLASS.copy().makeEditable());
         interpreter.classMap.put(PetPetTableView.class, PetPetTableView.TABLE_VIEW_CLASS.copy().makeEditable());
+        interpreter.classMap.put(PetPetGenerator.class, PetPetGenerator.GENERATOR_CLASS.copy().makeEditable());
+        interpreter.classMap.put(PetPetStream.class, PetPetStream.STREAM_CLASS.copy().makeEditable());
 
         //Global values
         setGlobal("class", GlobalFunctions.CLASS_FUNC);
         setGlobal("extend", GlobalFunctions.EXTEND_FUNC);
         setGlobal("error", GlobalFunctions.ERROR_FUNC);
-        setGlobal("print", GlobalFunctions.getPrintFunction(interpreter));
-        setGlobal("printStack", GlobalFunctions.getPrintStackFunction(interpreter));
+        setGlobal("print", printFunc);
+        setGlobal("printStack", printStackFunc);
         setGlobal("math", MathLibrary.createNewMathTable());
         setGlobal("_G", interpreter.globals);
 
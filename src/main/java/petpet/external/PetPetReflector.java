@@ -8,8 +8,8 @@ import java.lang.invoke.*;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
 
@@ -21,12 +21,17 @@ import java.util.function.Function;
 //the superclass which is likely a local variable
 public class PetPetReflector {
     //Ensuring that things don't need to be reflected twice to generate the classes
-    public static final Map<Class<?>, PetPetClass> CACHE = new IdentityHashMap<>();
+    //Concurrent, since static initializers of different classes can reflect on different threads.
+    //Not computeIfAbsent(), because reflecting can run other static initializers that reflect too.
+    public static final Map<Class<?>, PetPetClass> CACHE = new ConcurrentHashMap<>();
 
     public static PetPetClass reflect(Class<?> clazz, String name) {
-        if (!CACHE.containsKey(clazz))
-            CACHE.put(clazz, reflectInner(clazz, name));
-        return CACHE.get(clazz);
+        PetPetClass result = CACHE.get(clazz);
+        if (result != null)
+            return result;
+        result = reflectInner(clazz, name);
+        PetPetClass prev = CACHE.putIfAbsent(clazz, result);
+        return prev != null ? prev : result;
     }
 
     private static PetPetClass reflectInner(Class<?> clazz, String name) {
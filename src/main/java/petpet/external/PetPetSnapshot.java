@@ -0,0 +1,153 @@
+package petpet.external;
+
+import petpet.lang.run.*;
+import petpet.types.PetPetList;
+import petpet.types.PetPetObject;
+import petpet.types.PetPetTable;
+import petpet.types.immutable.PetPetListView;
+import petpet.types.immutable.PetPetTableView;
+import petpet.types.libraries.GlobalFunctions;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A frozen copy of the classes and globals of a PetPetInstance,
+ * made with PetPetInstance.freeze(). New instances can be created
+ * from a snapshot much faster than from scratch, since nothing needs
+ * to be reflected, compiled or run; the snapshot's state is just copied.
+ *
+ * Everything a script could edit is copied per instance: editable classes,
+ * tables, lists, objects, and closures along with their captured values.
+ * Immutable things, like strings, functions, and classes that aren't
+ * editable, are shared. So scripts in different instances still can't see
+ * each other's edits, and can't edit the snapshot.
+ *
+ * The snapshot itself is never modified after it's made, so instances
+ * can be created from it on any number of threads at once.
+ *
+ * Java functions holding on to an interpreter can't be rebound automatically.
+ * The builtin print and printStack are handled, but ones you add yourself
+ * with setGlobal() should be added again to each new instance. Views are
+ * shared as-is, so they keep viewing the frozen table or list.
+ */
+public class PetPetSnapshot {
+
+    private final Interpreter frozen = new Interpreter();
+    final JavaFunction printFunc = GlobalFunctions.getPrintFunction(frozen);
+    final JavaFunction printStackFunc = GlobalFunctions.getPrintStackFunction(frozen);
+    final CompileCache compileCache;
+
+    PetPetSnapshot(PetPetInstance source) {
+        if (source.interpreter.isRunning())
+            throw new IllegalStateException("Cannot freeze an instance while it's running a script");
+        Copier copier = new Copier(source.interpreter, source.printFunc, source.printStackFunc, frozen, printFunc, printStackFunc);
+        copier.copyState();
+        compileCache = source.compileCache;
+    }
+
+    /**
+     * Copies the frozen state into the new instance's interpreter.
+     */
+    void copyInto(PetPetInstance target) {
+        new Copier(frozen, printFunc, printStackFunc, target.interpreter, target.printFunc, target.printStackFunc).copyState();
+    }
+
+    /**
+     * Copies everything reachable from one interpreter's classes and
+     * globals into another interpreter, keeping shared references shared.
+     */
+    private static class Copier {
+        private final Interpreter from, to;
+        private final Map<Object, Object> copies = new IdentityHashMap<>();
+
+        Copier(Interpreter from, JavaFunction fromPrint, JavaFunction fromPrintStack,
+               Interpreter to, JavaFunction toPrint, JavaFunction toPrintStack) {
+            this.from = from;
+            this.to = to;
+            copies.put(from.globals, to.globals);
+            copies.put(fromPrint, toPrint);
+            copies.put(fromPrintStack, toPrintStack);
+        }
+
+        void copyState() {
+            to.maxStackFrames = from.maxStackFrames;
+            to.inlineThreshold = from.inlineThreshold;
+            for (Map.Entry<Class<?>, PetPetClass> entry : from.classMap.entrySet())
+                to.classMap.put(entry.getKey(), (PetPetClass) copy(entry.getValue()));
+            for (Map.Entry<String, Object> entry : from.globals.entrySet())
+                to.globals.put(entry.getKey(), copy(entry.getValue()));
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Object copy(Object o) {
+            if (o == null || o instanceof String || o instanceof Number || o instanceof Boolean)
+                return o;
+            Object existing = copies.get(o);
+            if (existing != null)
+                return existing;
+
+            //Subclasses first, since objects and views are also tables/lists java side
+            if (o instanceof PetPetTableView<?,?> || o instanceof PetPetListView<?>) {
+                return o;
+            } else if (o instanceof PetPetObject object) {
+                PetPetObject result = new PetPetObject((PetPetClass) copy(object.clazz));
+                copies.put(o, result);
+                copyEntries(object, result);
+                return result;
+            } else if (o instanceof PetPetTable<?,?> table) {
+                PetPetTable result = new PetPetTable<>(table.size());
+                copies.put(o, result);
+                copyEntries(table, result);
+                return result;
+            } else if (o instanceof PetPetList<?> list) {
+                PetPetList result = new PetPetList<>(list.size());
+                copies.put(o, result);
+                for (Object elem : list)
+                    result.add(copy(elem));
+                return result;
+            } else if (o instanceof PetPetClass clazz) {
+                return copyClass(clazz);
+            } else if (o instanceof PetPetClosure closure && closure.interpreter == from) {
+                PetPetClosure result = new PetPetClosure(closure.function, to);
+                copies.put(o, result);
+                for (int i = 0; i < closure.upvalues.length; i++)
+                    result.upvalues[i] = copyUpvalue(closure.upvalues[i]);
+                return result;
+            }
+            //Java functions, compiled functions, and anything else is shared
+            return o;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private void copyEntries(Map<?,?> from, Map result) {
+            for (Map.Entry<?,?> entry : from.entrySet())
+                result.put(copy(entry.getKey()), copy(entry.getValue()));
+        }
+
+        private PetPetClass copyClass(PetPetClass clazz) {
+            //Classes that can't be edited from scripts are safe to share
+            if (!clazz.isEditable())
+                return clazz;
+            PetPetClass result = clazz.copy();
+            copies.put(clazz, result);
+            result.parent = (PetPetClass) copy(clazz.parent);
+            //copy() already gave it a "class" method returning the new class
+            for (Map.Entry<String, PetPetCallable> entry : clazz.methods.entrySet())
+                if (!entry.getKey().equals("class"))
+                    result.methods.put(entry.getKey(), (PetPetCallable) copy(entry.getValue()));
+            return result;
+        }
+
+        private Upvalue copyUpvalue(Upvalue upvalue) {
+            Upvalue existing = (Upvalue) copies.get(upvalue);
+            if (existing != null)
+                return existing;
+            //Nothing is running, so every upvalue is closed
+            Upvalue result = new Upvalue(to, -1);
+            copies.put(upvalue, result);
+            result.value = copy(upvalue.get());
+            return result;
+        }
+    }
+}
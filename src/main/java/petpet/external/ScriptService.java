@@ -0,0 +1,270 @@
+package petpet.external;
+
+import petpet.lang.run.Interpreter;
+import petpet.lang.run.PetPetCallable;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Runs script calls for many tenants, each with their own PetPetInstances.
+ *
+ * Every tenant can run at most a fixed number of calls at once, and each
+ * running call has a PetPetInstance to itself, so an interpreter is never
+ * entered by two threads at the same time. Calls past the limit wait in a
+ * bounded per-tenant queue, and calls past that are rejected, so one busy
+ * tenant can't take over the service. Each call gets its own maxCost.
+ *
+ * Calls run on virtual threads when the JVM has them, and on a cached
+ * thread pool otherwise.
+ *
+ * A tenant with a concurrency limit above 1 gets more than one instance,
+ * and globals set in one aren't visible in the others. Use a limit of 1
+ * if a tenant's scripts need to share state between calls.
+ */
+public class ScriptService implements AutoCloseable {
+
+    private final Function<String, PetPetInstance> instanceFactory;
+    private final int maxConcurrency;
+    private final int maxQueueDepth;
+    private final ExecutorService executor;
+    private final Map<String, Tenant> tenants = new ConcurrentHashMap<>();
+
+    public ScriptService(PetPetSnapshot snapshot, int maxConcurrency, int maxQueueDepth) {
+        this(tenant -> new PetPetInstance(snapshot), maxConcurrency, maxQueueDepth, defaultExecutor());
+    }
+
+    /**
+     * @param instanceFactory Creates the instances for a tenant, given the tenant's name.
+     *                        Called once each time the tenant needs another instance.
+     */
+    public ScriptService(Function<String, PetPetInstance> instanceFactory, int maxConcurrency, int maxQueueDepth, ExecutorService executor) {
+        if (maxConcurrency <= 0 || maxQueueDepth < 0)
+            throw new IllegalArgumentException("Concurrency must be positive and queue depth non-negative");
+        this.instanceFactory = instanceFactory;
+        this.maxConcurrency = maxConcurrency;
+        this.maxQueueDepth = maxQueueDepth;
+        this.executor = executor;
+    }
+
+    /**
+     * Virtual threads are only in java 21 and up, so look for them reflectively.
+     */
+    public static ExecutorService defaultExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "PetPet-ScriptService");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Something to run on a tenant's instance. It has the instance
+     * to itself until it returns.
+     */
+    @FunctionalInterface
+    public interface ScriptCall {
+        Object run(PetPetInstance instance) throws Exception;
+    }
+
+    /**
+     * Queues the call to run on one of the tenant's instances. The returned future
+     * fails with a RejectedExecutionException if the tenant's queue is full.
+     */
+    public CompletableFuture<Object> submit(String tenant, long maxCost, ScriptCall call) {
+        Task task = new Task(call, maxCost);
+        tenants.computeIfAbsent(tenant, Tenant::new).submit(task);
+        return task.future;
+    }
+
+    /**
+     * Compiles (or gets from the instance's compile cache) and runs a script.
+     */
+    public CompletableFuture<Object> runScript(String tenant, long maxCost, String scriptName, String source, Object... args) {
+        return submit(tenant, maxCost, instance -> instance.runScript(scriptName, source, args));
+    }
+
+    /**
+     * Calls a function stored in one of the tenant's globals.
+     */
+    public CompletableFuture<Object> callGlobal(String tenant, long maxCost, String functionName, Object... args) {
+        return submit(tenant, maxCost, instance -> {
+            if (instance.getGlobal(functionName) instanceof PetPetCallable callable)
+                return callable.call(args);
+            throw new IllegalArgumentException("Global " + functionName + " is not a function");
+        });
+    }
+
+    public TenantMetrics metrics(String tenant) {
+        Tenant t = tenants.get(tenant);
+        return t == null ? new TenantMetrics(tenant, 0, 0, 0, 0, 0, 0, 0, 0, 0) : t.metrics();
+    }
+
+    public Map<String, TenantMetrics> allMetrics() {
+        Map<String, TenantMetrics> result = new ConcurrentHashMap<>();
+        tenants.forEach((name, t) -> result.put(name, t.metrics()));
+        return result;
+    }
+
+    /**
+     * Stops accepting calls and shuts down the executor. Calls already
+     * running are allowed to finish.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Times are in nanoseconds. Queue latency is the time from being
+     * submitted to starting to run, and run time is how long it ran for.
+     */
+    public record TenantMetrics(String tenant, long submitted, long rejected, long completed, long failed,
+                                int queued, long totalQueueNanos, long maxQueueNanos, long totalRunNanos, long maxRunNanos) {
+        public double averageQueueNanos() {
+            long started = completed + failed;
+            return started == 0 ? 0 : (double) totalQueueNanos / started;
+        }
+        public double averageRunNanos() {
+            long started = completed + failed;
+            return started == 0 ? 0 : (double) totalRunNanos / started;
+        }
+    }
+
+    private static void record(LongAdder total, AtomicLong max, long nanos) {
+        total.add(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    private static class Task {
+        final ScriptCall call;
+        final long maxCost;
+        final long submitTime = System.nanoTime();
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+
+        Task(ScriptCall call, long maxCost) {
+            this.call = call;
+            this.maxCost = maxCost;
+        }
+    }
+
+    private class Tenant {
+        final String name;
+        //Guarded by this
+        final ArrayDeque<Task> queue = new ArrayDeque<>();
+        final ArrayDeque<PetPetInstance> idle = new ArrayDeque<>();
+        int running;
+
+        final LongAdder submitted = new LongAdder(), rejected = new LongAdder(), completed = new LongAdder(), failed = new LongAdder();
+        final LongAdder totalQueueNanos = new LongAdder(), totalRunNanos = new LongAdder();
+        final AtomicLong maxQueueNanos = new AtomicLong(), maxRunNanos = new AtomicLong();
+
+        Tenant(String name) {
+            this.name = name;
+        }
+
+        void submit(Task task) {
+            submitted.increment();
+            boolean canStart;
+            PetPetInstance instance = null;
+            synchronized (this) {
+                canStart = running < maxConcurrency;
+                if (canStart) {
+                    running++;
+                    instance = idle.poll();
+                } else if (queue.size() < maxQueueDepth) {
+                    queue.add(task);
+                    return;
+                }
+            }
+            if (!canStart) {
+                rejected.increment();
+                task.future.completeExceptionally(new RejectedExecutionException("Queue for tenant " + name + " is full"));
+                return;
+            }
+            if (instance == null)
+                startWithNewInstance(task);
+            else
+                start(task, instance);
+        }
+
+        //Makes an instance for a task that has a slot but no idle instance. If that fails,
+        //the slot goes to the next queued task the same way finished() hands it on.
+        private void startWithNewInstance(Task task) {
+            while (task != null) {
+                PetPetInstance instance;
+                try {
+                    instance = instanceFactory.apply(name);
+                } catch (Throwable t) {
+                    failed.increment();
+                    task.future.completeExceptionally(t);
+                    synchronized (this) {
+                        task = queue.poll();
+                        if (task == null)
+                            running--;
+                    }
+                    continue;
+                }
+                start(task, instance);
+                return;
+            }
+        }
+
+        private void start(Task task, PetPetInstance instance) {
+            try {
+                executor.execute(() -> run(task, instance));
+            } catch (RejectedExecutionException e) {
+                task.future.completeExceptionally(e);
+                finished(instance);
+            }
+        }
+
+        private void run(Task task, PetPetInstance instance) {
+            long start = System.nanoTime();
+            record(totalQueueNanos, maxQueueNanos, start - task.submitTime);
+            Interpreter interpreter = instance.interpreter;
+            long prevMaxCost = interpreter.maxCost;
+            interpreter.maxCost = task.maxCost;
+            interpreter.cost = 0;
+            try {
+                Object result = task.call.run(instance);
+                completed.increment();
+                task.future.complete(result);
+            } catch (Throwable t) {
+                failed.increment();
+                task.future.completeExceptionally(t);
+            } finally {
+                interpreter.maxCost = prevMaxCost;
+                record(totalRunNanos, maxRunNanos, System.nanoTime() - start);
+                finished(instance);
+            }
+        }
+
+        //Hands the instance to the next queued task, or puts it back if there isn't one
+        private void finished(PetPetInstance instance) {
+            Task next;
+            synchronized (this) {
+                next = queue.poll();
+                if (next == null) {
+                    running--;
+                    idle.push(instance);
+                    return;
+                }
+            }
+            start(next, instance);
+        }
+
+        synchronized TenantMetrics metrics() {
+            return new TenantMetrics(name, submitted.sum(), rejected.sum(), completed.sum(), failed.sum(), queue.size(),
+                    totalQueueNanos.sum(), maxQueueNanos.get(), totalRunNanos.sum(), maxRunNanos.get());
+        }
+    }
+}
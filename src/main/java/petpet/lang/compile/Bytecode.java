@@ -71,6 +71,51 @@ public class Bytecode {
     public static final byte BIG_SET_UPVALUE = 44;
     public static final byte BIG_LOAD_UPVALUE = 45;
 
+    public static final byte YIELD = 46; //Pops a value and suspends the generator frame, handing the value out. Pushes null when resumed.
+
+    //Numeric for loops. Each takes an unsigned short slot, the local holding the loop's counter.
+    public static final byte FOR_PREP = 47; //Takes the slot, then a signed short jump. Pops <limit> <step> <start>, puts the loop counter in that slot, then pushes null as the loop's result. Jumps if the loop would run 0 times.
+    public static final byte FOR_LOOP = 48; //Takes the slot, then a signed short jump. Steps the counter in that slot, and jumps back if it hasn't passed the limit yet.
+    public static final byte LOAD_FOR = 49; //Takes the slot. Pushes the current value of the counter in that slot.
+
+    //Calls to the builtin math functions, see MathLibrary.INTRINSICS. Both take a byte index into that.
+    public static final byte MATH_GUARD = 50; //Also takes a signed short jump. If the global math table still holds that function, pushes it and jumps over the code that would look it up.
+    public static final byte MATH_CALL = 51; //Also takes a byte arg count. If the callee is that function and the args are numbers, computes it directly. Otherwise, acts like CALL.
+
+    //Calls whose result is returned right away. If the callee is a script function, its frame replaces
+    //the current one instead of going on top of it. Otherwise, they act like CALL and INVOKE.
+    public static final byte TAIL_CALL = 52; //takes a byte arg for the number of arguments
+    public static final byte TAIL_INVOKE = 53; //takes a byte arg for the number of arguments
+
+    //A function inlined at a call site by the Inliner. Its body comes right after the guard, and the original CALL right after that.
+    public static final byte INLINE_GUARD = 54; //Takes an unsigned short constant (the inlined function), a byte arg count and a signed short jump. Jumps to the original CALL unless the callee is a closure of that function.
+    public static final byte INLINE_RETURN = 55; //Takes an unsigned short count and a signed short jump. Removes that many values from under the top one, the inlined function's result, then jumps past the original CALL.
+
+    //Bitwise operators, on integers. Shifts are arithmetic, and only use the low 6 bits of the shift amount, like java's.
+    public static final byte BIT_AND = 56;
+    public static final byte BIT_OR = 57;
+    public static final byte BIT_XOR = 58;
+    public static final byte SHL = 59;
+    public static final byte SHR = 60;
+    public static final byte BIT_NOT = 61;
+
+    /**
+     * How many bytes of operands follow the given instruction, for walking over
+     * bytecode. CLOSURE and BIG_CLOSURE give -1, since theirs depend on
+     * the number of upvalues of the function they close over.
+     */
+    public static int operandBytes(byte code) {
+        return switch (code) {
+            case CONSTANT, SET_GLOBAL, LOAD_GLOBAL, SET_LOCAL, LOAD_LOCAL, SET_UPVALUE, LOAD_UPVALUE, CALL, INVOKE, TAIL_CALL, TAIL_INVOKE -> 1;
+            case BIG_CONSTANT, BIG_SET_GLOBAL, BIG_LOAD_GLOBAL, BIG_SET_LOCAL, BIG_LOAD_LOCAL, BIG_SET_UPVALUE, BIG_LOAD_UPVALUE,
+                    JUMP, JUMP_IF_FALSE, JUMP_IF_TRUE, LOAD_FOR, MATH_CALL -> 2;
+            case MATH_GUARD -> 3;
+            case FOR_PREP, FOR_LOOP, INLINE_RETURN -> 4;
+            case INLINE_GUARD -> 5;
+            case CLOSURE, BIG_CLOSURE -> -1;
+            default -> 0;
+        };
+    }
 
     //Lookup for bytecode printouts
     public static final String[] NAMES = Arrays.stream(Bytecode.class.getFields()).filter(f -> Modifier.isStatic(f.getModifiers())).filter(f -> f.getType() == byte.class)
@@ -1,8 +1,11 @@
 package petpet.lang.compile;
 
 import petpet.lang.run.PetPetFunction;
+import petpet.types.libraries.MathLibrary;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static petpet.lang.compile.Bytecode.*;
 
@@ -11,8 +14,148 @@ public class Chunk {
     public final Object[] constants;
     public final byte[] bytes;
 
-    private Chunk(Object[] constants, byte[] bytes) {
+    //The most values this chunk ever has on the stack at once, above its params. The interpreter
+    //makes room for this many when a frame starts, so pushes while it runs don't need to check.
+    public final int maxStackSize;
+
+    //Null, unless this is a copy of a function's chunk made by the Inliner, which has its own
+    public final int[] lineNumberTable;
+
+    //The function bodies the Inliner copied into this chunk, so stack traces can still show them. In
+    //order of where they start, so bodies inlined inside other inlined bodies come after them.
+    public final List<InlinedCall> inlinedCalls;
+
+    public Chunk(Object[] constants, byte[] bytes) {
+        this(constants, bytes, null, List.of());
+    }
+
+    public Chunk(Object[] constants, byte[] bytes, int[] lineNumberTable, List<InlinedCall> inlinedCalls) {
         this.constants = constants; this.bytes = bytes;
+        this.lineNumberTable = lineNumberTable;
+        this.inlinedCalls = List.copyOf(inlinedCalls);
+        maxStackSize = computeStackDepths(constants, bytes, new int[bytes.length]);
+    }
+
+    /**
+     * A body of the given function, copied into this chunk from start up to end. Its line number
+     * table is like a function's, but with offsets into this chunk rather than the function's own.
+     */
+    public record InlinedCall(PetPetFunction function, int start, int end, int[] lineNumberTable) {
+        //Whether an instruction pointer is inside this body, which it is just after running any instruction in it
+        public boolean contains(int ip) {
+            return start < ip && ip <= end;
+        }
+
+        public int lineNumber(int ip) {
+            int index = 0;
+            while (index < lineNumberTable.length && lineNumberTable[index] < ip) index++;
+            return index;
+        }
+    }
+
+    //Offsets of the CALL instructions in here, in order
+    public int[] callSites() {
+        int[] sites = new int[8];
+        int count = 0;
+        PetPetFunction constFunc = null;
+        int i = 0;
+        while (i < bytes.length) {
+            byte code = bytes[i];
+            if (code == CALL) {
+                if (count == sites.length)
+                    sites = Arrays.copyOf(sites, count * 2);
+                sites[count++] = i;
+            }
+            if (code == CLOSURE || code == BIG_CLOSURE) {
+                i += 1 + constFunc.numUpvalues * (code == CLOSURE ? 2 : 3);
+                constFunc = null;
+                continue;
+            }
+            if (code == CONSTANT)
+                constFunc = constants[bytes[i+1] & 0xff] instanceof PetPetFunction f ? f : null;
+            else if (code == BIG_CONSTANT)
+                constFunc = constants[readUnsignedShort(bytes, i)] instanceof PetPetFunction f ? f : null;
+            else
+                constFunc = null;
+            i += 1 + Bytecode.operandBytes(code);
+        }
+        return Arrays.copyOf(sites, count);
+    }
+
+    //Follows every path through the bytecode, filling in how deep the stack is above the params
+    //when each instruction starts, or -1 if it's never reached. Returns the deepest it gets.
+    static int computeStackDepths(Object[] constants, byte[] bytes, int[] depths) {
+        Arrays.fill(depths, -1);
+        int[] pending = new int[8]; //pairs of (index, depth) still to follow
+        int pendingCount = 0;
+        int max = 0;
+        int i = 0, depth = 0;
+        while (true) {
+            PetPetFunction constFunc = null;
+            while (i < bytes.length && depths[i] == -1) {
+                depths[i] = depth;
+                byte code = bytes[i];
+                int branch = -1, branchDepth = depth; //where a jump would go, if this can jump
+                switch (code) {
+                    case CONSTANT, BIG_CONSTANT -> {
+                        int idx = code == CONSTANT ? bytes[i+1] & 0xff : readUnsignedShort(bytes, i);
+                        constFunc = constants[idx] instanceof PetPetFunction f ? f : null;
+                        depth++;
+                    }
+                    case PUSH_NULL, LOAD_GLOBAL, BIG_LOAD_GLOBAL, LOAD_LOCAL, BIG_LOAD_LOCAL, LOAD_UPVALUE, BIG_LOAD_UPVALUE,
+                            LOAD_FOR, NEW_LIST, NEW_TABLE -> depth++;
+                    case POP, PRINT, POP_OFFSET_1, CLOSE_UPVALUE, ADD, SUB, MUL, DIV, MOD, EQ, NEQ, LT, GT, LTE, GTE, GET, LIST_ADD,
+                            BIT_AND, BIT_OR, BIT_XOR, SHL, SHR -> depth--;
+                    case SET, TABLE_SET -> depth -= 2;
+                    case CALL, TAIL_CALL -> depth -= bytes[i+1] & 0xff;
+                    case INVOKE, TAIL_INVOKE -> depth -= (bytes[i+1] & 0xff) + 1;
+                    case MATH_CALL -> depth -= bytes[i+2] & 0xff;
+                    case MATH_GUARD -> {
+                        branch = i + 4 + readSignedShort(bytes, i + 1);
+                        branchDepth = depth + 1;
+                    }
+                    case JUMP, JUMP_IF_FALSE, JUMP_IF_TRUE -> branch = i + 3 + readSignedShort(bytes, i);
+                    case FOR_PREP -> {
+                        depth -= 2;
+                        branch = i + 5 + readSignedShort(bytes, i + 2);
+                        branchDepth = depth;
+                    }
+                    case FOR_LOOP -> branch = i + 5 + readSignedShort(bytes, i + 2);
+                    case INLINE_GUARD -> branch = i + 6 + readSignedShort(bytes, i + 3);
+                    case INLINE_RETURN -> {
+                        depth -= readUnsignedShort(bytes, i);
+                        branch = i + 5 + readSignedShort(bytes, i + 2);
+                        branchDepth = depth;
+                    }
+                    default -> {}
+                }
+                max = Math.max(max, Math.max(depth, branchDepth));
+                if (code == RETURN || code == JUMP || code == INLINE_RETURN) {
+                    i = branch;
+                    if (code == RETURN || branch >= bytes.length || depths[branch] != -1)
+                        break;
+                    continue;
+                }
+                if (branch != -1) {
+                    if (pendingCount == pending.length)
+                        pending = Arrays.copyOf(pending, pending.length * 2);
+                    pending[pendingCount++] = branch;
+                    pending[pendingCount++] = branchDepth;
+                }
+                if (code == CLOSURE || code == BIG_CLOSURE) {
+                    i += 1 + constFunc.numUpvalues * (code == CLOSURE ? 2 : 3);
+                    constFunc = null;
+                } else {
+                    if (code != CONSTANT && code != BIG_CONSTANT)
+                        constFunc = null;
+                    i += 1 + Bytecode.operandBytes(code);
+                }
+            }
+            if (pendingCount == 0)
+                return max;
+            depth = pending[--pendingCount];
+            i = pending[--pendingCount];
+        }
     }
 
     public String toString(int indent) {
@@ -30,7 +173,7 @@ public class Chunk {
                 case CONSTANT -> {
                     result.append("(").append(bytes[++i] & 0xff).append(") = ");
                     if (constants[bytes[i]] instanceof PetPetFunction func) {
-                        result.append(func).append(":\n").append(func.chunk.toString(indent + digits + 1));
+                        result.append(func).append(":\n").append(func.chunk().toString(indent + digits + 1));
                         dontNewLine = true;
                         constFunc = func;
                     } else
@@ -56,7 +199,35 @@ public class Chunk {
                     result.append(" by ").append(extendSignwise(readSignedShort(bytes, i), 3));
                     i += 2;
                 }
-                case CALL, INVOKE -> result.append(" with ").append(bytes[++i] & 0xff).append(" args");
+                case LOAD_FOR -> {
+                    int idx = readUnsignedShort(bytes, i); i += 2;
+                    result.append("(").append(idx).append(")");
+                }
+                case FOR_PREP, FOR_LOOP -> {
+                    int idx = readUnsignedShort(bytes, i); i += 2;
+                    result.append("(").append(idx).append(") by ").append(extendSignwise(readSignedShort(bytes, i), 5));
+                    i += 2;
+                }
+                case MATH_GUARD -> {
+                    result.append("(").append(MathLibrary.INTRINSIC_NAMES[bytes[++i] & 0xff]).append(") by ").append(extendSignwise(readSignedShort(bytes, i), 4));
+                    i += 2;
+                }
+                case MATH_CALL -> {
+                    result.append("(").append(MathLibrary.INTRINSIC_NAMES[bytes[++i] & 0xff]).append(")");
+                    result.append(" with ").append(bytes[++i] & 0xff).append(" args");
+                }
+                case INLINE_GUARD -> {
+                    int idx = readUnsignedShort(bytes, i); i += 2;
+                    result.append("(").append(constants[idx]).append(") with ").append(bytes[++i] & 0xff).append(" args");
+                    result.append(" by ").append(extendSignwise(readSignedShort(bytes, i), 6));
+                    i += 2;
+                }
+                case INLINE_RETURN -> {
+                    result.append(" dropping ").append(readUnsignedShort(bytes, i)); i += 2;
+                    result.append(" by ").append(extendSignwise(readSignedShort(bytes, i), 5));
+                    i += 2;
+                }
+                case CALL, INVOKE, TAIL_CALL, TAIL_INVOKE -> result.append(" with ").append(bytes[++i] & 0xff).append(" args");
                 case CLOSURE -> {
                     if (constFunc == null) throw new RuntimeException("Failed to print closure bytecode");
                     result.append(" over: \n");
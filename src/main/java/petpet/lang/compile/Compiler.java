@@ -10,6 +10,9 @@ import java.util.List;
  */
 public class Compiler {
 
+    //Stands for "not known at compile time", since null is a value a const can have
+    public static final Object NOT_CONSTANT = new Object();
+
     private final List<Local> locals = new ArrayList<>(); //map name to depth
     private final List<CompileTimeUpvalue> upvalues = new ArrayList<>();
 
@@ -17,12 +20,17 @@ public class Compiler {
     private final ArrayList<Integer> lineNumberTable = new ArrayList<>();
     private int latestLine = 0;
     private int scopeDepth = 0;
+    private boolean isGenerator = false; //Set when a yield is compiled directly in this function
 
     private final Chunk.Builder chunkBuilder;
 
     private final Compiler parent;
     public final String fileName;
 
+    //Whether finished functions go through the Optimizer, and whether it prints what it
+    //ends up with. Functions defined inside take these from their parent compiler.
+    public boolean optimize = true, dumpIR;
+
     public Compiler(Compiler parent, String fileName) { //So functions know which file they were defined in
         this.parent = parent;
 
@@ -31,6 +39,10 @@ public class Compiler {
             this.fileName = this.parent.fileName;
         else
             this.fileName = fileName;
+        if (this.parent != null) {
+            optimize = this.parent.optimize;
+            dumpIR = this.parent.dumpIR;
+        }
 
         chunkBuilder = Chunk.builder();
         try {registerLocal("");} catch (Exception neverHappens) {
@@ -43,7 +55,17 @@ public class Compiler {
         int[] lineNumberArr = new int[lineNumberTable.size()];
         for (int i = 0; i < lineNumberArr.length; i++)
             lineNumberArr[i] = lineNumberTable.get(i);
-        return new PetPetFunction(name, chunkBuilder.build(), lineNumber, lineNumberArr, paramCount, upvalues.size());
+        Chunk chunk = chunkBuilder.build();
+        if (optimize) {
+            if (dumpIR)
+                System.out.println(name + ":");
+            chunk = Optimizer.optimize(chunk, lineNumberArr, dumpIR);
+        }
+        return new PetPetFunction(name, chunk, lineNumber, lineNumberArr, paramCount, upvalues.size(), isGenerator);
+    }
+
+    public void markGenerator() {
+        isGenerator = true;
     }
 
     public void beginScope() {
@@ -71,6 +93,57 @@ public class Compiler {
         locals.add(new Local(varName, scopeDepth));
     }
 
+    //Registers a local that can only be assigned by its declaration. Consts can shadow
+    //variables from outer scopes, but not ones declared in the same scope.
+    public void registerConst(String varName) throws CompilationException {
+        int existing = indexOfLocal(varName);
+        if (existing != -1 && locals.get(existing).depth == scopeDepth)
+            throw new CompilationException("Cannot declare const \"" + varName + "\", there's already a variable of that name in this scope", latestLine);
+        registerLocal(varName);
+        locals.get(locals.size()-1).isConst = true;
+    }
+
+    //Once a const's value is known at compile time, uses of the const compile to the value instead
+    public void setConstValue(int index, Object value) {
+        locals.get(index).constValue = value;
+    }
+
+    //Whether the name refers to a const, here or in an enclosing function
+    public boolean isConst(String varName) {
+        int local = indexOfLocal(varName);
+        if (local != -1)
+            return locals.get(local).isConst;
+        return parent != null && parent.isConst(varName);
+    }
+
+    //The compile time value of the const the name refers to, here or in an enclosing function,
+    //or NOT_CONSTANT if it's a regular variable, or a const whose value isn't known. Functions
+    //use the value directly rather than capturing the const as an upvalue.
+    public Object constantValue(String varName) {
+        int local = indexOfLocal(varName);
+        if (local != -1)
+            return locals.get(local).constValue;
+        return parent != null ? parent.constantValue(varName) : NOT_CONSTANT;
+    }
+
+    //Registers the local holding a for loop's counter, returning its slot. Like other locals, this happens
+    //in scanForDeclarations(), before anything is on the stack above the locals. The counter only has its
+    //name while the loop's body is being scanned or compiled, see nameForLocal().
+    public int registerForLocal() throws CompilationException {
+        registerLocal("");
+        locals.get(locals.size()-1).isForCounter = true;
+        return locals.size()-1;
+    }
+
+    //Gives a for loop's counter its name, or takes it away again if varName is null
+    public void nameForLocal(int slot, String varName) {
+        locals.get(slot).name = varName == null ? "" : varName;
+    }
+
+    public boolean isForLocal(int index) {
+        return locals.get(index).isForCounter;
+    }
+
     public int indexOfLocal(String varName) {
         for (int i = locals.size()-1; i >= 0; i--) {
             if (locals.get(i).name.equals(varName))
@@ -95,6 +168,8 @@ public class Compiler {
         if (parent == null) return -1;
         int parentLocal = parent.indexOfLocal(varName);
         if (parentLocal != -1) {
+            if (parent.isForLocal(parentLocal))
+                throw new CompilationException("Cannot capture for loop variable \"" + varName + "\" in a function, copy it into another variable first", latestLine);
             parent.locals.get(parentLocal).isCaptured = true;
             return registerUpvalue(parentLocal, true);
         }
@@ -113,6 +188,14 @@ public class Compiler {
         return res;
     }
 
+    //Like emitJump, for instructions with a byte operand before the jump
+    public int emitJumpWithByteArg(byte instruction, byte arg) {
+        chunkBuilder.writeWithByteArg(instruction, arg);
+        int res = chunkBuilder.getByteIndex();
+        chunkBuilder.writeShort(-1);
+        return res;
+    }
+
     public void patchJump(int jumpLocation) throws CompilationException {
         int jump = chunkBuilder.getByteIndex() - jumpLocation - 2;
         if (jump < Short.MIN_VALUE || jump > Short.MAX_VALUE) throw new CompilationException("Too much code to jump over! Max 32k bytecodes either direction", latestLine);
@@ -130,6 +213,21 @@ public class Compiler {
         chunkBuilder.writeWithShortArg(Bytecode.JUMP, jump);
     }
 
+    //Emits FOR_PREP and returns the location of its jump, which is patched to skip the loop
+    public int emitForPrep(int slot) {
+        chunkBuilder.writeWithShortArg(Bytecode.FOR_PREP, slot);
+        int res = chunkBuilder.getByteIndex();
+        chunkBuilder.writeShort(-1);
+        return res;
+    }
+
+    public void emitForLoop(int slot, int loopStart) throws CompilationException {
+        int jump = loopStart - chunkBuilder.getByteIndex() - 5;
+        if (jump < Short.MIN_VALUE || jump > Short.MAX_VALUE) throw new CompilationException("Too much code to jump over! Max 32k bytecodes either direction", latestLine);
+        chunkBuilder.writeWithShortArg(Bytecode.FOR_LOOP, slot);
+        chunkBuilder.writeShort(jump);
+    }
+
     public void emitClosure(Compiler finishedCompiler) throws CompilationException {
         //First, check if *all* upvalue indices are below 250
         boolean allBelow250 = true;
@@ -195,6 +293,9 @@ public class Compiler {
         String name;
         int depth;
         boolean isCaptured;
+        boolean isForCounter; //Holds a for loop's counter rather than a value, so it's read with LOAD_FOR
+        boolean isConst;
+        Object constValue = NOT_CONSTANT;
         public Local(String name, int depth) {
             this.name = name;
             this.depth = depth;
@@ -0,0 +1,187 @@
+package petpet.lang.compile;
+
+import petpet.lang.compile.Instructions.Insn;
+import petpet.lang.run.PetPetFunction;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static petpet.lang.compile.Bytecode.*;
+
+/**
+ * Copies the body of a small function into a call site of another, once the
+ * interpreter has seen that call go to the same function many times in a row.
+ * The copy is guarded by an INLINE_GUARD, which checks that the callee really
+ * is a closure of that function before running it, and otherwise jumps to the
+ * original CALL, which is left in place after the body.
+ *
+ * The inlined body works on the stack exactly like the call would have: the
+ * callee and args stay where they are, the callee's locals are moved up to
+ * start at the callee's slot, and each RETURN becomes an INLINE_RETURN that
+ * clears all of that away, leaving the result where the CALL would have.
+ * The chunk keeps track of where each copied body is, so stack traces can
+ * still show the inlined function as if it had been called.
+ */
+public final class Inliner {
+
+    //Functions with more bytecode than this are left as calls
+    public static final int MAX_INLINE_SIZE = 64;
+    //Callers bigger than this aren't inlined into, so jumps across the body still fit in a short
+    public static final int MAX_CALLER_SIZE = 16384;
+
+    private Inliner() {}
+
+    /**
+     * Makes a copy of the caller's chunk, with the callee inlined at the CALL instruction
+     * at the given offset, or returns null if it can't be. The caller's chunk can already
+     * be a copy made by this, in which case its line number table is carried over.
+     */
+    public static Chunk inline(PetPetFunction caller, Chunk callerChunk, int site, PetPetFunction callee) {
+        if (callee.isGenerator || callee.numUpvalues > 0 || callerChunk.bytes.length > MAX_CALLER_SIZE)
+            return null;
+        Chunk calleeChunk = callee.chunk();
+        if (calleeChunk.bytes.length > MAX_INLINE_SIZE)
+            return null;
+
+        int[] callerLines = (callerChunk.lineNumberTable != null ? callerChunk.lineNumberTable : caller.lineNumberTable).clone();
+        Instructions ir = new Instructions(callerChunk, callerLines);
+        Insn call = null;
+        for (Insn insn : ir.code)
+            if (insn.oldOffset == site)
+                call = insn;
+        if (call == null || call.op != CALL || call.isTarget || call.byteArg() != callee.paramCount)
+            return null;
+        int argCount = call.byteArg();
+
+        //Where the callee's slot is, relative to the caller's frame
+        int[] callerDepths = new int[callerChunk.bytes.length];
+        Chunk.computeStackDepths(callerChunk.constants, callerChunk.bytes, callerDepths);
+        if (callerDepths[site] == -1)
+            return null;
+        int base = caller.paramCount + 1 + callerDepths[site] - argCount - 1;
+
+        int[] calleeDepths = new int[calleeChunk.bytes.length];
+        Chunk.computeStackDepths(calleeChunk.constants, calleeChunk.bytes, calleeDepths);
+
+        Instructions body = new Instructions(calleeChunk, new int[0]);
+        Insn after = ir.next(call);
+        List<Insn> copied = new ArrayList<>(body.code.size() + 1);
+        for (Insn insn : body.code) {
+            Insn copy = relocate(insn, ir, body, base, argCount + Math.max(calleeDepths[insn.oldOffset], 0));
+            if (copy == null)
+                return null;
+            copy.oldOffset = site; //for line numbers, the whole body is at the call
+            copied.add(copy);
+        }
+        for (int i = 0; i < copied.size(); i++) {
+            Insn original = body.code.get(i);
+            Insn copy = copied.get(i);
+            if (copy.op == INLINE_RETURN)
+                copy.target = after;
+            else if (original.target != null)
+                copy.target = copied.get(original.target.index);
+            if (copy.target != null)
+                copy.target.isTarget = true;
+        }
+
+        int funcIdx = indexOf(ir, callee);
+        if (funcIdx > 0xffff)
+            return null;
+        Insn guard = new Insn(INLINE_GUARD, new byte[] {(byte) (funcIdx >> 8), (byte) funcIdx, (byte) argCount, 0, 0}, site);
+        guard.target = call;
+        call.isTarget = true;
+        List<Insn> bodyCopies = new ArrayList<>(copied);
+        copied.add(0, guard);
+
+        ir.code.addAll(call.index, copied);
+        ir.reindex();
+        byte[] bytes = ir.encodeBytes();
+
+        //Bodies inlined before move along with the code around them, and the new one covers
+        //everything from after the guard up to the call, with the callee's lines moved to match
+        List<Chunk.InlinedCall> inlinedCalls = new ArrayList<>();
+        for (Chunk.InlinedCall old : callerChunk.inlinedCalls) {
+            int[] lines = new int[old.lineNumberTable().length];
+            for (int i = 0; i < lines.length; i++)
+                lines[i] = ir.newOffsetOf(old.lineNumberTable()[i]);
+            inlinedCalls.add(new Chunk.InlinedCall(old.function(), ir.newOffsetOf(old.start()), ir.newOffsetOf(old.end()), lines));
+        }
+        int[] calleeLines = callee.lineNumberTable;
+        int[] lines = new int[calleeLines.length];
+        for (int i = 0, next = 0; i < lines.length; i++) {
+            while (next < body.code.size() && body.code.get(next).oldOffset < calleeLines[i])
+                next++;
+            lines[i] = next < bodyCopies.size() ? bodyCopies.get(next).newOffset : call.newOffset;
+        }
+        inlinedCalls.add(new Chunk.InlinedCall(callee, bodyCopies.get(0).newOffset, call.newOffset, lines));
+        inlinedCalls.sort(Comparator.comparingInt(Chunk.InlinedCall::start));
+        return new Chunk(ir.constants.toArray(), bytes, callerLines, inlinedCalls);
+    }
+
+    //The instruction as it should be in the caller, or null if it can't be moved there
+    private static Insn relocate(Insn insn, Instructions ir, Instructions body, int base, int returnDrop) {
+        byte op = insn.op;
+        byte[] operands = insn.operands.clone();
+        switch (op) {
+            case CLOSURE, BIG_CLOSURE, YIELD, CLOSE_UPVALUE, LOAD_UPVALUE, BIG_LOAD_UPVALUE,
+                    SET_UPVALUE, BIG_SET_UPVALUE, INLINE_GUARD, INLINE_RETURN -> {
+                return null;
+            }
+            case CONSTANT, BIG_CONSTANT, LOAD_GLOBAL, BIG_LOAD_GLOBAL, SET_GLOBAL, BIG_SET_GLOBAL -> {
+                boolean big = op == BIG_CONSTANT || op == BIG_LOAD_GLOBAL || op == BIG_SET_GLOBAL;
+                Object constant = body.constants.get(big ? insn.shortArg() : insn.byteArg());
+                int idx = indexOf(ir, constant);
+                if (idx >= 250)
+                    return null;
+                op = switch (op) {
+                    case CONSTANT, BIG_CONSTANT -> CONSTANT;
+                    case LOAD_GLOBAL, BIG_LOAD_GLOBAL -> LOAD_GLOBAL;
+                    default -> SET_GLOBAL;
+                };
+                operands = new byte[] {(byte) idx};
+            }
+            case LOAD_LOCAL, BIG_LOAD_LOCAL, SET_LOCAL, BIG_SET_LOCAL -> {
+                boolean big = op == BIG_LOAD_LOCAL || op == BIG_SET_LOCAL;
+                boolean load = op == LOAD_LOCAL || op == BIG_LOAD_LOCAL;
+                int slot = base + (big ? insn.shortArg() : insn.byteArg());
+                if (slot > 0xffff)
+                    return null;
+                if (slot < 250) {
+                    op = load ? LOAD_LOCAL : SET_LOCAL;
+                    operands = new byte[] {(byte) slot};
+                } else {
+                    op = load ? BIG_LOAD_LOCAL : BIG_SET_LOCAL;
+                    operands = new byte[] {(byte) (slot >> 8), (byte) slot};
+                }
+            }
+            case FOR_PREP, LOAD_FOR, FOR_LOOP -> {
+                int slot = base + insn.shortArg();
+                if (slot > 0xffff)
+                    return null;
+                operands[0] = (byte) (slot >> 8);
+                operands[1] = (byte) slot;
+            }
+            //The call isn't in tail position anymore, its result goes to the INLINE_RETURN after it
+            case TAIL_CALL -> op = CALL;
+            case TAIL_INVOKE -> op = INVOKE;
+            case RETURN -> {
+                op = INLINE_RETURN;
+                operands = new byte[] {(byte) (returnDrop >> 8), (byte) returnDrop, 0, 0};
+            }
+            default -> {}
+        }
+        return new Insn(op, operands, insn.oldOffset);
+    }
+
+    //Index of the value in the caller's constants, adding it if it isn't there
+    private static int indexOf(Instructions ir, Object value) {
+        for (int i = 0; i < ir.constants.size(); i++) {
+            Object constant = ir.constants.get(i);
+            if (constant == value || constant.getClass() == value.getClass() && constant.equals(value))
+                return i;
+        }
+        ir.constants.add(value);
+        return ir.constants.size() - 1;
+    }
+}
@@ -0,0 +1,226 @@
+package petpet.lang.compile;
+
+import petpet.lang.run.PetPetFunction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static petpet.lang.compile.Bytecode.*;
+
+/**
+ * A chunk decoded into a list of instructions, where jumps point at the
+ * instruction they land on rather than at an offset, so instructions can be
+ * deleted, changed or inserted freely. Encoding it gives a chunk again, with
+ * the jumps and the line number table fixed up to match. Used by the
+ * Optimizer and the Inliner.
+ */
+final class Instructions {
+
+    final List<Insn> code = new ArrayList<>();
+    final List<Object> constants;
+    private final int[] lineNumberTable;
+    private final int oldLength;
+    private int encodedLength;
+
+    Instructions(Chunk chunk, int[] lineNumberTable) {
+        this.constants = new ArrayList<>(Arrays.asList(chunk.constants));
+        this.lineNumberTable = lineNumberTable;
+        this.oldLength = chunk.bytes.length;
+        decode(chunk);
+    }
+
+    static final class Insn {
+        byte op;
+        byte[] operands;
+        int oldOffset;
+        Insn target; //where this jumps to, for instructions that can jump
+        boolean isTarget; //whether anything jumps here
+        boolean dead;
+        int index, newOffset;
+
+        Insn(byte op, byte[] operands, int oldOffset) {
+            this.op = op;
+            this.operands = operands;
+            this.oldOffset = oldOffset;
+        }
+
+        int length() {
+            return 1 + operands.length;
+        }
+
+        int byteArg() {
+            return operands[0] & 0xff;
+        }
+
+        int shortArg() {
+            return ((operands[0] & 0xff) << 8) | (operands[1] & 0xff);
+        }
+    }
+
+    //Where the signed short jump offset sits in the operands, or -1 if the instruction never jumps.
+    //Offsets are always counted from the end of the instruction.
+    static int jumpOperand(byte op) {
+        return switch (op) {
+            case JUMP, JUMP_IF_FALSE, JUMP_IF_TRUE -> 0;
+            case MATH_GUARD -> 1;
+            case FOR_PREP, FOR_LOOP, INLINE_RETURN -> 2;
+            case INLINE_GUARD -> 3;
+            default -> -1;
+        };
+    }
+
+    private void decode(Chunk chunk) {
+        byte[] bytes = chunk.bytes;
+        PetPetFunction constFunc = null;
+        int i = 0;
+        while (i < bytes.length) {
+            byte op = bytes[i];
+            int operandCount = Bytecode.operandBytes(op);
+            if (op == CLOSURE || op == BIG_CLOSURE)
+                operandCount = constFunc.numUpvalues * (op == CLOSURE ? 2 : 3);
+            Insn insn = new Insn(op, Arrays.copyOfRange(bytes, i + 1, i + 1 + operandCount), i);
+            code.add(insn);
+            if (op == CONSTANT)
+                constFunc = chunk.constants[insn.byteArg()] instanceof PetPetFunction f ? f : null;
+            else if (op == BIG_CONSTANT)
+                constFunc = chunk.constants[insn.shortArg()] instanceof PetPetFunction f ? f : null;
+            else
+                constFunc = null;
+            i += insn.length();
+        }
+
+        //Point jumps at instructions, by their offsets
+        Insn[] byOffset = new Insn[bytes.length + 1];
+        for (int j = 0; j < code.size(); j++) {
+            Insn insn = code.get(j);
+            insn.index = j;
+            byOffset[insn.oldOffset] = insn;
+        }
+        for (Insn insn : code) {
+            int at = jumpOperand(insn.op);
+            if (at == -1)
+                continue;
+            int offset = (short) (((insn.operands[at] & 0xff) << 8) | (insn.operands[at + 1] & 0xff));
+            insn.target = byOffset[insn.oldOffset + insn.length() + offset];
+            insn.target.isTarget = true;
+        }
+    }
+
+    Object constantOf(Insn insn) {
+        if (insn.op == CONSTANT)
+            return constants.get(insn.byteArg());
+        if (insn.op == BIG_CONSTANT)
+            return constants.get(insn.shortArg());
+        return null;
+    }
+
+    //Fixes up the index of each instruction, after inserting some
+    void reindex() {
+        for (int i = 0; i < code.size(); i++)
+            code.get(i).index = i;
+    }
+
+    Insn next(Insn insn) {
+        int i = insn.index + 1;
+        return i < code.size() ? code.get(i) : null;
+    }
+
+    //The first live instruction at or after this one, which is where a jump to it really lands
+    Insn live(Insn insn) {
+        if (insn == null)
+            return null;
+        int i = insn.index;
+        while (i < code.size() && code.get(i).dead)
+            i++;
+        return i < code.size() ? code.get(i) : null;
+    }
+
+    Chunk encode() {
+        byte[] bytes = encodeBytes();
+        return new Chunk(constants.toArray(), bytes);
+    }
+
+    //Where the instruction at the given offset in the decoded chunk ended up in the last encoding,
+    //or the one after it if it was deleted. Offsets past the end of the old chunk go to the new end.
+    int newOffsetOf(int oldOffset) {
+        if (oldOffset < oldLength)
+            for (Insn insn : code)
+                if (insn.oldOffset >= oldOffset)
+                    return insn.newOffset;
+        return encodedLength;
+    }
+
+    //Encodes the instructions, fixing up the line number table in place
+    byte[] encodeBytes() {
+        int offset = 0;
+        for (Insn insn : code) {
+            insn.newOffset = offset;
+            if (!insn.dead)
+                offset += insn.length();
+        }
+        encodedLength = offset;
+        byte[] bytes = new byte[offset];
+        for (Insn insn : code) {
+            if (insn.dead)
+                continue;
+            bytes[insn.newOffset] = insn.op;
+            System.arraycopy(insn.operands, 0, bytes, insn.newOffset + 1, insn.operands.length);
+            int at = jumpOperand(insn.op);
+            if (at != -1) {
+                //Jumps always land on a live instruction, since every function ends in RETURN
+                int jump = live(insn.target).newOffset - (insn.newOffset + insn.length());
+                bytes[insn.newOffset + 1 + at] = (byte) (jump >>> 8);
+                bytes[insn.newOffset + 2 + at] = (byte) jump;
+            }
+        }
+
+        //Each entry of the line number table is the offset of the first byte at some line
+        int next = 0;
+        for (int i = 0; i < lineNumberTable.length; i++) {
+            int old = lineNumberTable[i];
+            while (next < code.size() && code.get(next).oldOffset < old)
+                next++;
+            lineNumberTable[i] = old >= oldLength || next == code.size() ? bytes.length : code.get(next).newOffset;
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        int block = 0;
+        boolean newBlock = true;
+        int[] blocks = new int[code.size()];
+        for (Insn insn : code) {
+            if (insn.dead)
+                continue;
+            if (insn.isTarget)
+                newBlock = true;
+            if (newBlock)
+                block++;
+            blocks[insn.index] = block;
+            newBlock = insn.target != null || insn.op == RETURN;
+        }
+        newBlock = true;
+        for (Insn insn : code) {
+            if (insn.dead)
+                continue;
+            if (insn.isTarget || newBlock)
+                result.append("block ").append(blocks[insn.index]).append(":\n");
+            result.append("    ").append(Bytecode.NAMES[insn.op]);
+            switch (insn.op) {
+                case CONSTANT, BIG_CONSTANT -> result.append(" '").append(constantOf(insn)).append("'");
+                default -> {
+                    if (jumpOperand(insn.op) == -1 && insn.operands.length > 0)
+                        result.append(" ").append(Arrays.toString(insn.operands));
+                }
+            }
+            if (insn.target != null)
+                result.append(" -> block ").append(blocks[live(insn.target).index]);
+            result.append("\n");
+            newBlock = insn.target != null || insn.op == RETURN;
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,279 @@
+package petpet.lang.compile;
+
+import petpet.lang.compile.Instructions.Insn;
+import petpet.types.PetPetNumber;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static petpet.lang.compile.Bytecode.*;
+
+/**
+ * Cleans up the bytecode of a function once the compiler is done with it.
+ * The chunk is decoded into Instructions, the passes delete and rewrite
+ * instructions in it, and then it's encoded back into a chunk.
+ *
+ * Almost any value can run script code when it's indexed, called or used
+ * with an operator, through metamethods, so the passes stay away from all of
+ * that. They only deal with locals, constants, and arithmetic on numbers, and
+ * never look past an instruction that something jumps to.
+ */
+public final class Optimizer {
+
+    private final Instructions ir;
+    private final List<Insn> code;
+
+    private Optimizer(Chunk chunk, int[] lineNumberTable) {
+        ir = new Instructions(chunk, lineNumberTable);
+        code = ir.code;
+    }
+
+    /**
+     * Optimizes the chunk, and rewrites the line number table in place to match the new one.
+     */
+    public static Chunk optimize(Chunk chunk, int[] lineNumberTable, boolean dump) {
+        Optimizer optimizer = new Optimizer(chunk, lineNumberTable);
+        boolean changed = true;
+        while (changed) {
+            changed = optimizer.foldConstants();
+            changed |= optimizer.removeDeadStores();
+            changed |= optimizer.propagateStores();
+            changed |= optimizer.removeUnusedValues();
+            changed |= optimizer.threadJumps();
+            changed |= optimizer.removeUnreachable();
+        }
+        if (dump)
+            System.out.println(optimizer.ir);
+        return optimizer.ir.encode();
+    }
+
+    //Each instruction after the given one that's still alive, up to count of them, or null if
+    //there aren't that many, or if one of them is a jump target
+    private Insn[] followedBy(int index, int count) {
+        Insn[] result = new Insn[count];
+        int found = 0;
+        for (int i = index + 1; i < code.size() && found < count; i++) {
+            Insn insn = code.get(i);
+            if (insn.dead)
+                continue;
+            if (insn.isTarget)
+                return null;
+            result[found++] = insn;
+        }
+        return found == count ? result : null;
+    }
+
+    //Arithmetic and comparisons on two number literals happen at compile time, the same way the interpreter would do them
+    private boolean foldConstants() {
+        boolean changed = false;
+        for (int i = 0; i < code.size(); i++) {
+            Insn first = code.get(i);
+            if (first.dead || !(ir.constantOf(first) instanceof Number l))
+                continue;
+            Insn[] next = followedBy(i, 2);
+            Object folded = null;
+            if (next != null && ir.constantOf(next[0]) instanceof Number r) {
+                String name = switch (next[1].op) {
+                    case ADD -> "add";
+                    case SUB -> "sub";
+                    case MUL -> "mul";
+                    case DIV -> "div";
+                    case MOD -> "mod";
+                    case BIT_AND -> "band";
+                    case BIT_OR -> "bor";
+                    case BIT_XOR -> "bxor";
+                    case SHL -> "shl";
+                    case SHR -> "shr";
+                    case LT -> "lt";
+                    case GT -> "gt";
+                    case LTE -> "lte";
+                    case GTE -> "gte";
+                    case EQ -> "eq";
+                    case NEQ -> "neq";
+                    default -> null;
+                };
+                if (name != null)
+                    folded = PetPetNumber.arith(name, l, r);
+            }
+            if (folded != null && replaceConstant(first, folded)) {
+                next[0].dead = true;
+                next[1].dead = true;
+                changed = true;
+                continue;
+            }
+            next = followedBy(i, 1);
+            Object negated = l instanceof Double d ? (Object) (-d) : l instanceof Long n && n != Long.MIN_VALUE ? (Object) (-n) : null;
+            if (next != null && next[0].op == NEGATE && negated != null && replaceConstant(first, negated)) {
+                next[0].dead = true;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    //Makes the instruction push the given constant instead, if there's room for it
+    private boolean replaceConstant(Insn insn, Object value) {
+        int idx = ir.constants.indexOf(value);
+        if (idx == -1) {
+            if (ir.constants.size() >= 250)
+                return false;
+            ir.constants.add(value);
+            idx = ir.constants.size() - 1;
+        }
+        if (idx >= 250)
+            return false;
+        insn.op = CONSTANT;
+        insn.operands = new byte[] {(byte) idx};
+        return true;
+    }
+
+    //Stores into a local that this function never reads, and no function inside it captures, do nothing
+    private boolean removeDeadStores() {
+        boolean[] read = new boolean[65536];
+        for (Insn insn : code) {
+            if (insn.dead)
+                continue;
+            switch (insn.op) {
+                case LOAD_LOCAL -> read[insn.byteArg()] = true;
+                case BIG_LOAD_LOCAL -> read[insn.shortArg()] = true;
+                case CLOSURE -> {
+                    for (int j = 0; j < insn.operands.length; j += 2)
+                        if (insn.operands[j] > 0)
+                            read[insn.operands[j + 1] & 0xff] = true;
+                }
+                case BIG_CLOSURE -> {
+                    for (int j = 0; j < insn.operands.length; j += 3)
+                        if (insn.operands[j] > 0)
+                            read[((insn.operands[j + 1] & 0xff) << 8) | (insn.operands[j + 2] & 0xff)] = true;
+                }
+                default -> {}
+            }
+        }
+        boolean changed = false;
+        for (Insn insn : code) {
+            if (insn.dead)
+                continue;
+            if (insn.op == SET_LOCAL && !read[insn.byteArg()] || insn.op == BIG_SET_LOCAL && !read[insn.shortArg()]) {
+                insn.dead = true; //the stored value stays on the stack either way
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    //A value stored and then popped and loaded right back is just left on the stack instead
+    private boolean propagateStores() {
+        boolean changed = false;
+        for (int i = 0; i < code.size(); i++) {
+            Insn store = code.get(i);
+            byte load = switch (store.op) {
+                case SET_LOCAL -> LOAD_LOCAL;
+                case BIG_SET_LOCAL -> BIG_LOAD_LOCAL;
+                case SET_UPVALUE -> LOAD_UPVALUE;
+                case BIG_SET_UPVALUE -> BIG_LOAD_UPVALUE;
+                case SET_GLOBAL -> LOAD_GLOBAL;
+                case BIG_SET_GLOBAL -> BIG_LOAD_GLOBAL;
+                default -> -1;
+            };
+            if (store.dead || load == -1)
+                continue;
+            Insn[] next = followedBy(i, 2);
+            if (next != null && next[0].op == POP && next[1].op == load && Arrays.equals(next[1].operands, store.operands)) {
+                next[0].dead = true;
+                next[1].dead = true;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    //Values that are pushed only to be popped right away, with nothing else happening, aren't pushed at all
+    private boolean removeUnusedValues() {
+        boolean changed = false;
+        for (int i = 0; i < code.size(); i++) {
+            Insn push = code.get(i);
+            if (push.dead)
+                continue;
+            switch (push.op) {
+                case CONSTANT, BIG_CONSTANT, PUSH_NULL, LOAD_LOCAL, BIG_LOAD_LOCAL, LOAD_UPVALUE, BIG_LOAD_UPVALUE, LOAD_FOR -> {
+                    Insn[] next = followedBy(i, 1);
+                    if (next != null && next[0].op == POP) {
+                        push.dead = true;
+                        next[0].dead = true;
+                        changed = true;
+                    }
+                }
+                default -> {}
+            }
+        }
+        return changed;
+    }
+
+    //Jumps to jumps go straight to the end of the chain, and jumps to the next instruction disappear
+    private boolean threadJumps() {
+        boolean changed = false;
+        for (Insn insn : code) {
+            if (insn.dead || insn.target == null)
+                continue;
+            Insn target = ir.live(insn.target);
+            for (int hops = 0; target != null && target.op == JUMP && target != insn && hops < 16; hops++)
+                target = ir.live(target.target);
+            if (target != insn.target && target != null) {
+                insn.target = target;
+                target.isTarget = true;
+                changed = true;
+            }
+            if (insn.op == JUMP && target == ir.live(ir.next(insn))) {
+                insn.dead = true;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    //Drops instructions that no path through the function reaches
+    private boolean removeUnreachable() {
+        boolean[] reached = new boolean[code.size()];
+        int[] pending = new int[code.size() + 1];
+        int pendingCount = 0;
+        pending[pendingCount++] = 0;
+        while (pendingCount > 0) {
+            int i = pending[--pendingCount];
+            while (i < code.size() && !reached[i]) {
+                reached[i] = true;
+                Insn insn = code.get(i);
+                if (insn.dead) {
+                    i++;
+                    continue;
+                }
+                if (insn.target != null) {
+                    Insn target = ir.live(insn.target);
+                    if (target != null && !reached[target.index])
+                        pending[pendingCount++] = target.index;
+                }
+                if (insn.op == RETURN || insn.op == JUMP)
+                    break;
+                i++;
+            }
+        }
+        boolean changed = false;
+        for (int i = 0; i < code.size(); i++) {
+            if (!reached[i] && !code.get(i).dead) {
+                code.get(i).dead = true;
+                changed = true;
+            }
+        }
+        //Recount which instructions are still jumped to
+        for (Insn insn : code)
+            insn.isTarget = false;
+        for (Insn insn : code)
+            if (!insn.dead && insn.target != null)
+                insn.target = ir.live(insn.target);
+        for (Insn insn : code)
+            if (!insn.dead && insn.target != null)
+                insn.target.isTarget = true;
+        return changed;
+    }
+
+
+}
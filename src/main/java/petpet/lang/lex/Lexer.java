@@ -10,7 +10,7 @@ import java.util.regex.Pattern;
 public class Lexer {
 
     private static final Pattern REGEX = Pattern.compile(
-            "//.*|==|!=|>=|<=|&&|\\|\\||!\\[|\\$\\[|[\\[\\]{}():;!=><+\\-*/%.,]|\\d+(?:\\.\\d+)?|[a-zA-Z_]\\w*|\"(?:\\\\.|[^\\\\\"])*\"|\n|."
+            "//.*|==|!=|>=|<=|<<|>>|&&|\\|\\||\\.\\.|!\\[|\\$\\[|[\\[\\]{}():;!=><+\\-*/%.,&|^~]|0x[0-9a-fA-F]+|\\d+(?:\\.\\d+)?|[a-zA-Z_]\\w*|\"(?:\\\\.|[^\\\\\"])*\"|\n|."
     );
     private static final Pattern WORD_REGEX = Pattern.compile(
             "[a-zA-Z_]\\w*"
@@ -69,7 +69,7 @@ public class Lexer {
                     }
 
                     else if (Character.isDigit(str.charAt(0))) //Number literal
-                        toks.add(new Token(TokenType.NUMBER_LITERAL, Double.parseDouble(str), curLine));
+                        toks.add(new Token(TokenType.NUMBER_LITERAL, parseNumber(str), curLine));
 
                     else if (WORD_REGEX.matcher(str).matches()) //Name
                         toks.add(new Token(TokenType.NAME, str, curLine));
@@ -84,6 +84,21 @@ public class Lexer {
         return toks.toArray(new Token[0]);
     }
 
+    //Literals without a decimal point are integers, unless they're too big to be one.
+    //Hex literals are always integers, and can use all 64 bits.
+    private static Object parseNumber(String str) {
+        if (str.startsWith("0x"))
+            return Long.parseUnsignedLong(str.substring(2), 16);
+        if (str.indexOf('.') == -1) {
+            try {
+                return Long.parseLong(str);
+            } catch (NumberFormatException tooBig) {
+                //fall through to double
+            }
+        }
+        return Double.parseDouble(str);
+    }
+
     public record Token(TokenType type, Object value, int line) {
         public String getString() {
             return (String) value;
@@ -102,6 +117,7 @@ public class Lexer {
         DIVIDE("/"),
         MODULO("%"),
         DOT("."),
+        RANGE(".."),
         ASSIGN("="),
 
         NOT("!", "not"),
@@ -112,6 +128,13 @@ public class Lexer {
         GREATER(">"),
         LESS("<"),
 
+        BIT_AND("&"),
+        BIT_OR("|"),
+        BIT_XOR("^"),
+        BIT_NOT("~"),
+        SHIFT_LEFT("<<"),
+        SHIFT_RIGHT(">>"),
+
         AND("&&", "and"),
         OR("||", "or"),
 
@@ -130,13 +153,17 @@ public class Lexer {
         IF("if"),
         ELSE("else"),
         WHILE("while"),
+        FOR("for"),
+        IN("in"),
         THIS("this"),
         RETURN("return"),
+        YIELD("yield"),
         GLOBAL("global"),
+        CONST("const"),
 
         FUNCTION("fn"),
 
-        NUMBER_LITERAL(), //double
+        NUMBER_LITERAL(), //long, or double
         BOOLEAN_LITERAL(),
         NAME(),
         STRING_LITERAL(),
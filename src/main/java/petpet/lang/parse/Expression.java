@@ -4,6 +4,8 @@ import petpet.lang.lex.Lexer;
 import petpet.lang.run.PetPetFunction;
 import petpet.lang.compile.Bytecode;
 import petpet.lang.compile.Compiler;
+import petpet.types.PetPetNumber;
+import petpet.types.libraries.MathLibrary;
 
 import java.util.EnumMap;
 import java.util.List;
@@ -23,6 +25,18 @@ public abstract class Expression {
         compiler.acceptLineNumber(startLine);
     }
 
+    //Compiles this where its value gets returned from the function right after, so
+    //a call here can be a tail call. Expressions that can end in a call override it.
+    public void compileTail(Compiler compiler) throws Compiler.CompilationException {
+        compile(compiler);
+    }
+
+    //What this always evaluates to, if that can be worked out at compile time from literals
+    //and consts, or Compiler.NOT_CONSTANT otherwise. Only number arithmetic gets folded.
+    public Object constantValue(Compiler compiler) {
+        return Compiler.NOT_CONSTANT;
+    }
+
     //Scans for local declarations or upvalues and emits bytecode to push null if it finds any, and register in compiler
     public abstract void scanForDeclarations(Compiler compiler) throws Compiler.CompilationException;
 
@@ -35,6 +49,15 @@ public abstract class Expression {
 
         @Override
         public void compile(Compiler compiler) throws Compiler.CompilationException {
+            compile(compiler, false);
+        }
+
+        @Override
+        public void compileTail(Compiler compiler) throws Compiler.CompilationException {
+            compile(compiler, true);
+        }
+
+        private void compile(Compiler compiler, boolean tail) throws Compiler.CompilationException {
             super.compile(compiler);
             if (exprs.size() == 0) {
                 compiler.bytecode(Bytecode.PUSH_NULL);
@@ -43,9 +66,14 @@ public abstract class Expression {
             compiler.beginScope();
             for (int i = 0; i < exprs.size(); i++) {
                 exprs.get(i).scanForDeclarations(compiler);
-                exprs.get(i).compile(compiler);
-                if (i != exprs.size()-1)
+                if (i != exprs.size()-1) {
+                    exprs.get(i).compile(compiler);
                     compiler.bytecode(Bytecode.POP);
+                } else if (tail) {
+                    exprs.get(i).compileTail(compiler);
+                } else {
+                    exprs.get(i).compile(compiler);
+                }
             }
             compiler.endScope();
         }
@@ -65,7 +93,7 @@ public abstract class Expression {
         @Override
         public void compile(Compiler compiler) throws Compiler.CompilationException {
             super.compile(compiler);
-            retVal.compile(compiler);
+            retVal.compileTail(compiler);
             compiler.bytecode(Bytecode.RETURN);
         }
 
@@ -74,6 +102,26 @@ public abstract class Expression {
             retVal.scanForDeclarations(compiler);
         }
     }
+    public static class Yield extends Expression {
+        public final Expression value;
+        protected Yield(int startLine, Expression value) {
+            super(startLine);
+            this.value = value;
+        }
+
+        @Override
+        public void compile(Compiler compiler) throws Compiler.CompilationException {
+            super.compile(compiler);
+            value.compile(compiler);
+            compiler.bytecode(Bytecode.YIELD);
+            compiler.markGenerator();
+        }
+
+        @Override
+        public void scanForDeclarations(Compiler compiler) throws Compiler.CompilationException {
+            value.scanForDeclarations(compiler);
+        }
+    }
     public static class IfExpression extends Expression {
         public final Expression condition, ifTrue, ifFalse;
         public IfExpression(int startLine, Expression condition, Expression ifTrue, Expression ifFalse) {
@@ -85,13 +133,23 @@ public abstract class Expression {
 
         @Override
         public void compile(Compiler compiler) throws Compiler.CompilationException {
+            compile(compiler, false);
+        }
+
+        @Override
+        public void compileTail(Compiler compiler) throws Compiler.CompilationException {
+            compile(compiler, true);
+        }
+
+        private void compile(Compiler compiler, boolean tail) throws Compiler.CompilationException {
             super.compile(compiler);
             condition.compile(compiler);
 
             int jumpElse = compiler.emitJump(Bytecode.JUMP_IF_FALSE);
             int jumpOut = -1;
             compiler.bytecode(Bytecode.POP);
-            ifTrue.compile(compiler);
+            if (tail) ifTrue.compileTail(compiler);
+            else ifTrue.compile(compiler);
 
 //            if (ifFalse != null) //if we have an else statement, emit an unconditional jump to skip it
                 jumpOut = compiler.emitJump(Bytecode.JUMP);
@@ -101,7 +159,8 @@ public abstract class Expression {
             compiler.bytecode(Bytecode.POP);
 
             if (ifFalse != null) {
-                ifFalse.compile(compiler);
+                if (tail) ifFalse.compileTail(compiler);
+                else ifFalse.compile(compiler);
 //                compiler.patchJump(jumpOut);
             } else {
                 compiler.bytecode(Bytecode.PUSH_NULL);
@@ -162,6 +221,63 @@ public abstract class Expression {
         }
     }
 
+    public static class For extends Expression {
+        public final String varName;
+        public final Expression start, limit, step, body;
+        private int slot = -1; //Where the counter lives, reserved in scanForDeclarations()
+        public For(int startLine, String varName, Expression start, Expression limit, Expression step, Expression body) {
+            super(startLine);
+            this.varName = varName;
+            this.start = start;
+            this.limit = limit;
+            this.step = step;
+            this.body = body;
+        }
+
+        /*
+        ...
+        push start
+        push limit
+        push step
+        FOR_PREP, if the loop won't run jump to END
+        > the counter is now in its local, which was reserved with the other locals, with null on the stack
+        START
+        > pop prev result
+        body
+        FOR_LOOP, jump to START if the counter hasn't passed the limit
+        END
+        ...
+         */
+        @Override
+        public void compile(Compiler compiler) throws Compiler.CompilationException {
+            super.compile(compiler);
+            start.compile(compiler);
+            limit.compile(compiler);
+            step.compile(compiler);
+            int endJump = compiler.emitForPrep(slot);
+            int loopStart = compiler.startLoop();
+            compiler.bytecode(Bytecode.POP);
+            compiler.nameForLocal(slot, varName);
+            body.compile(compiler);
+            compiler.nameForLocal(slot, null);
+            compiler.emitForLoop(slot, loopStart);
+            compiler.patchJump(endJump);
+        }
+
+        @Override
+        public void scanForDeclarations(Compiler compiler) throws Compiler.CompilationException {
+            start.scanForDeclarations(compiler);
+            limit.scanForDeclarations(compiler);
+            step.scanForDeclarations(compiler);
+            slot = compiler.registerForLocal();
+            compiler.bytecode(Bytecode.PUSH_NULL); //reserve space for the counter on stack
+            //The body sees the counter, so assigning to it is an error rather than a new local
+            compiler.nameForLocal(slot, varName);
+            body.scanForDeclarations(compiler);
+            compiler.nameForLocal(slot, null);
+        }
+    }
+
     public static class Literal extends Expression {
         public final Object value;
         public Literal(int startLine, Object value) {
@@ -172,6 +288,15 @@ public abstract class Expression {
         @Override
         public void compile(Compiler compiler) throws Compiler.CompilationException {
             super.compile(compiler);
+            compileConstant(compiler, value);
+        }
+
+        //Pushes a value known at compile time
+        static void compileConstant(Compiler compiler, Object value) throws Compiler.CompilationException {
+            if (value == null) {
+                compiler.bytecode(Bytecode.PUSH_NULL);
+                return;
+            }
             int loc = compiler.registerConstant(value);
             if (loc < 250) {
                 compiler.bytecodeWithByteArg(Bytecode.CONSTANT, (byte) loc);
@@ -180,6 +305,11 @@ public abstract class Expression {
             }
         }
 
+        @Override
+        public Object constantValue(Compiler compiler) {
+            return value;
+        }
+
         @Override
         public void scanForDeclarations(Compiler compiler) throws Compiler.CompilationException {}
     }
@@ -195,6 +325,11 @@ public abstract class Expression {
             compiler.bytecode(Bytecode.PUSH_NULL);
         }
 
+        @Override
+        public Object constantValue(Compiler compiler) {
+            return null;
+        }
+
         @Override
         public void scanForDeclarations(Compiler compiler) throws Compiler.CompilationException {}
     }
@@ -266,7 +401,8 @@ public abstract class Expression {
             Compiler thisCompiler = new Compiler(compiler, null);
             for (String param : paramNames)
                 thisCompiler.registerLocal(param);
-            body.compile(thisCompiler);
+            body.scanForDeclarations(thisCompiler);
+            body.compileTail(thisCompiler);
             //Get the name
             String name;
             if (funcName == null) {
@@ -295,10 +431,17 @@ public abstract class Expression {
         @Override
         public void compile(Compiler compiler) throws Compiler.CompilationException {
             super.compile(compiler);
+            Object constant = compiler.constantValue(name);
+            if (constant != Compiler.NOT_CONSTANT) {
+                Literal.compileConstant(compiler, constant);
+                return;
+            }
             int localIndex = compiler.indexOfLocal(name);
             if (localIndex != -1) {
                 //If there's a local variable of this name in scope, then get local
-                if (localIndex < 250)
+                if (compiler.isForLocal(localIndex))
+                    compiler.bytecodeWithShortArg(Bytecode.LOAD_FOR, (short) localIndex);
+                else if (localIndex < 250)
                     compiler.bytecodeWithByteArg(Bytecode.LOAD_LOCAL, (byte) localIndex);
                 else
                     compiler.bytecodeWithShortArg(Bytecode.BIG_LOAD_LOCAL, (short) localIndex);
@@ -321,6 +464,11 @@ public abstract class Expression {
             }
         }
 
+        @Override
+        public Object constantValue(Compiler compiler) {
+            return compiler.constantValue(name);
+        }
+
         @Override
         public void scanForDeclarations(Compiler compiler) throws Compiler.CompilationException {}
     }
@@ -335,6 +483,11 @@ public abstract class Expression {
             compiler.acceptLineNumber(startLine);
             compiler.bytecodeWithByteArg(Bytecode.LOAD_LOCAL, (byte) 0);
         }
+
+        @Override
+        public Object constantValue(Compiler compiler) {
+            return Compiler.NOT_CONSTANT;
+        }
     }
 
     public static class Get extends Expression {
@@ -403,11 +556,47 @@ public abstract class Expression {
 
         @Override
         public void compile(Compiler compiler) throws Compiler.CompilationException {
+            compile(compiler, false);
+        }
+
+        @Override
+        public void compileTail(Compiler compiler) throws Compiler.CompilationException {
+            compile(compiler, true);
+        }
+
+        private void compile(Compiler compiler, boolean tail) throws Compiler.CompilationException {
             super.compile(compiler);
+            int mathId = mathIntrinsic(compiler);
+            if (mathId != -1) {
+                //Skip looking up the function if it's still the builtin one, see MATH_GUARD
+                int skipLookup = compiler.emitJumpWithByteArg(Bytecode.MATH_GUARD, (byte) mathId);
+                callingObject.compile(compiler);
+                compiler.patchJump(skipLookup);
+                for (Expression arg : args)
+                    arg.compile(compiler);
+                compiler.bytecodeWithByteArg(Bytecode.MATH_CALL, (byte) mathId);
+                compiler.bytecode((byte) args.size());
+                return;
+            }
             callingObject.compile(compiler);
             for (Expression arg : args)
                 arg.compile(compiler);
-            compiler.bytecodeWithByteArg(Bytecode.CALL, (byte) args.size());
+            compiler.bytecodeWithByteArg(tail ? Bytecode.TAIL_CALL : Bytecode.CALL, (byte) args.size());
+        }
+
+        //If this is a call like math:sin(x) on the global math table, the index of the
+        //builtin function in MathLibrary.INTRINSICS, otherwise -1
+        private int mathIntrinsic(Compiler compiler) throws Compiler.CompilationException {
+            if (!(callingObject instanceof Get.Strong get) || !(get.indexer instanceof Literal literal) || !(literal.value instanceof String name))
+                return -1;
+            if (!(get.left instanceof Name math) || get.left instanceof This || !math.name.equals("math"))
+                return -1;
+            if (compiler.indexOfLocal("math") != -1 || compiler.indexOfUpvalue("math") != -1)
+                return -1;
+            int id = MathLibrary.intrinsicId(name);
+            if (id == -1 || MathLibrary.INTRINSICS[id].paramCount != args.size())
+                return -1;
+            return id;
         }
 
         @Override
@@ -431,12 +620,21 @@ public abstract class Expression {
 
         @Override
         public void compile(Compiler compiler) throws Compiler.CompilationException {
+            compile(compiler, false);
+        }
+
+        @Override
+        public void compileTail(Compiler compiler) throws Compiler.CompilationException {
+            compile(compiler, true);
+        }
+
+        private void compile(Compiler compiler, boolean tail) throws Compiler.CompilationException {
             super.compile(compiler);
             instance.compile(compiler);
             indexer.compile(compiler);
             for (Expression arg : args)
                 arg.compile(compiler);
-            compiler.bytecodeWithByteArg(Bytecode.INVOKE, (byte) args.size());
+            compiler.bytecodeWithByteArg(tail ? Bytecode.TAIL_INVOKE : Bytecode.INVOKE, (byte) args.size());
         }
 
         @Override
@@ -452,10 +650,16 @@ public abstract class Expression {
         public final String varName;
         public final Expression rhs;
         public boolean isGlobal;
+        public final boolean isConst; //The declaration of a const, the only assignment it gets
 
         public Assign(int startLine, boolean global, String varName, Expression rhs) {
+            this(startLine, global, false, varName, rhs);
+        }
+
+        public Assign(int startLine, boolean global, boolean isConst, String varName, Expression rhs) {
             super(startLine);
             this.isGlobal = global;
+            this.isConst = isConst;
             this.varName = varName;
             this.rhs = rhs;
         }
@@ -463,7 +667,21 @@ public abstract class Expression {
         @Override
         public void compile(Compiler compiler) throws Compiler.CompilationException {
             super.compile(compiler);
-            if (isGlobal) {
+            if (isConst) {
+                int loc = compiler.indexOfLocal(varName);
+                Object value = rhs.constantValue(compiler);
+                if (value != Compiler.NOT_CONSTANT) {
+                    //Nothing is stored, every use of the const will push the value itself
+                    compiler.setConstValue(loc, value);
+                    Literal.compileConstant(compiler, value);
+                    return;
+                }
+                rhs.compile(compiler);
+                if (loc < 250)
+                    compiler.bytecodeWithByteArg(Bytecode.SET_LOCAL, (byte) loc);
+                else
+                    compiler.bytecodeWithShortArg(Bytecode.BIG_SET_LOCAL, (short) loc);
+            } else if (isGlobal) {
                 int loc = compiler.registerConstant(varName);
                 rhs.compile(compiler);
                 if (loc < 250)
@@ -473,6 +691,8 @@ public abstract class Expression {
                 }
 
             } else {
+                if (compiler.isConst(varName))
+                    throw new Compiler.CompilationException("Cannot assign to const \"" + varName + "\"", startLine);
                 int loc = compiler.indexOfLocal(varName);
                 if (loc == -1) {
                     //this is an upvalue, not a local
@@ -487,6 +707,8 @@ public abstract class Expression {
                     else
                         compiler.bytecodeWithShortArg(Bytecode.BIG_SET_UPVALUE, (short) upValueLoc);
                 } else {
+                    if (compiler.isForLocal(loc))
+                        throw new Compiler.CompilationException("Cannot assign to for loop variable \"" + varName + "\"", startLine);
                     rhs.compile(compiler);
                     if (loc < 250)
                         compiler.bytecodeWithByteArg(Bytecode.SET_LOCAL, (byte) loc);
@@ -498,8 +720,13 @@ public abstract class Expression {
 
         @Override
         public void scanForDeclarations(Compiler compiler) throws Compiler.CompilationException {
+            //A const is always a new declaration, in the current scope
+            if (isConst) {
+                compiler.registerConst(varName);
+                compiler.bytecode(Bytecode.PUSH_NULL);
+            }
             //If global, there will never be a declaration. Just search right side
-            if (!isGlobal && compiler.indexOfLocal(varName) == -1) {
+            else if (!isGlobal && compiler.indexOfLocal(varName) == -1) {
                 //No local, look for an upvalue:
                 int upvalueIndex = compiler.indexOfUpvalue(varName);
                 if (upvalueIndex == -1) {
@@ -554,11 +781,24 @@ public abstract class Expression {
         @Override
         public void compile(Compiler compiler) throws Compiler.CompilationException {
             super.compile(compiler);
+            Object folded = constantValue(compiler);
+            if (folded != Compiler.NOT_CONSTANT) {
+                Literal.compileConstant(compiler, folded);
+                return;
+            }
             left.compile(compiler);
             right.compile(compiler);
             compiler.bytecode(op.bytecode);
         }
 
+        @Override
+        public Object constantValue(Compiler compiler) {
+            if (!(left.constantValue(compiler) instanceof Number l) || !(right.constantValue(compiler) instanceof Number r))
+                return Compiler.NOT_CONSTANT;
+            Object result = PetPetNumber.arith(op.metaName, l, r);
+            return result != null ? result : Compiler.NOT_CONSTANT;
+        }
+
         @Override
         public void scanForDeclarations(Compiler compiler) throws Compiler.CompilationException {
             left.scanForDeclarations(compiler);
@@ -566,25 +806,33 @@ public abstract class Expression {
         }
 
         public enum Op {
-            ADD(PLUS, Bytecode.ADD),
-            SUB(MINUS, Bytecode.SUB),
-
-            MUL(TIMES, Bytecode.MUL),
-            DIV(DIVIDE, Bytecode.DIV),
-            MOD(MODULO, Bytecode.MOD),
-
-            EQ(EQUALS, Bytecode.EQ),
-            NEQ(NOT_EQUALS, Bytecode.NEQ),
-            GT(GREATER, Bytecode.GT),
-            GTE(GREATER_EQUAL, Bytecode.GTE),
-            LT(LESS, Bytecode.LT),
-            LTE(LESS_EQUAL, Bytecode.LTE);
+            ADD(PLUS, Bytecode.ADD, "add"),
+            SUB(MINUS, Bytecode.SUB, "sub"),
+
+            MUL(TIMES, Bytecode.MUL, "mul"),
+            DIV(DIVIDE, Bytecode.DIV, "div"),
+            MOD(MODULO, Bytecode.MOD, "mod"),
+
+            BIT_AND(Lexer.TokenType.BIT_AND, Bytecode.BIT_AND, "band"),
+            BIT_OR(Lexer.TokenType.BIT_OR, Bytecode.BIT_OR, "bor"),
+            BIT_XOR(Lexer.TokenType.BIT_XOR, Bytecode.BIT_XOR, "bxor"),
+            SHL(SHIFT_LEFT, Bytecode.SHL, "shl"),
+            SHR(SHIFT_RIGHT, Bytecode.SHR, "shr"),
+
+            EQ(EQUALS, Bytecode.EQ, "eq"),
+            NEQ(NOT_EQUALS, Bytecode.NEQ, "neq"),
+            GT(GREATER, Bytecode.GT, "gt"),
+            GTE(GREATER_EQUAL, Bytecode.GTE, "gte"),
+            LT(LESS, Bytecode.LT, "lt"),
+            LTE(LESS_EQUAL, Bytecode.LTE, "lte");
 
             private final Lexer.TokenType t;
             private final byte bytecode;
-            Op(Lexer.TokenType t, byte bytecode) {
+            private final String metaName; //of the metamethod, without the underscores
+            Op(Lexer.TokenType t, byte bytecode, String metaName) {
                 this.t = t;
                 this.bytecode = bytecode;
+                this.metaName = metaName;
             }
 
             private static final Map<Lexer.TokenType, Op> opMap = new EnumMap(Lexer.TokenType.class) {{
@@ -611,10 +859,27 @@ public abstract class Expression {
         @Override
         public void compile(Compiler compiler) throws Compiler.CompilationException {
             super.compile(compiler);
+            Object folded = constantValue(compiler);
+            if (folded != Compiler.NOT_CONSTANT) {
+                Literal.compileConstant(compiler, folded);
+                return;
+            }
             expr.compile(compiler);
             compiler.bytecode(op.bytecode);
         }
 
+        @Override
+        public Object constantValue(Compiler compiler) {
+            Object value = expr.constantValue(compiler);
+            if (value == Compiler.NOT_CONSTANT)
+                return value;
+            return switch (op) {
+                case NOT -> value == Boolean.FALSE || value == null || (value instanceof Double d && d == 0) || (value instanceof Long l && l == 0); //same as Interpreter.isFalsy()
+                case NEGATE -> value instanceof Double d ? (Object) (-d) : value instanceof Long l && l != Long.MIN_VALUE ? (Object) (-l) : Compiler.NOT_CONSTANT;
+                case BIT_NOT -> value instanceof Number && PetPetNumber.toLong(value) != null ? (Object) ~PetPetNumber.toLong(value) : Compiler.NOT_CONSTANT;
+            };
+        }
+
         @Override
         public void scanForDeclarations(Compiler compiler) throws Compiler.CompilationException {
             expr.scanForDeclarations(compiler);
@@ -622,7 +887,8 @@ public abstract class Expression {
 
         public enum Op {
             NOT(Lexer.TokenType.NOT, Bytecode.NOT),
-            NEGATE(Lexer.TokenType.MINUS, Bytecode.NEGATE);
+            NEGATE(Lexer.TokenType.MINUS, Bytecode.NEGATE),
+            BIT_NOT(Lexer.TokenType.BIT_NOT, Bytecode.BIT_NOT);
 
             private final Lexer.TokenType t;
             private final byte bytecode;
@@ -654,6 +920,14 @@ public abstract class Expression {
             inside.compile(compiler);
         }
         @Override
+        public void compileTail(Compiler compiler) throws Compiler.CompilationException {
+            inside.compileTail(compiler);
+        }
+        @Override
+        public Object constantValue(Compiler compiler) {
+            return inside.constantValue(compiler);
+        }
+        @Override
         public void scanForDeclarations(Compiler compiler) throws Compiler.CompilationException {
             inside.scanForDeclarations(compiler);
         }
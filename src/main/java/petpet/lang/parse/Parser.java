@@ -23,6 +23,7 @@ import java.util.List;
  *
  * TopLevelStatement:
  * | (g | global)? Name(type name)? Name = Expression ;
+ * | const Name = Expression ;
  * | Expression ;
  * | ControlFlow
  * | TypeDefinition
@@ -90,8 +91,12 @@ public class Parser {
     }
 
     private Expression parseAssignment() throws ParserException {
+        if (check(CONST))
+            return parseConst();
         boolean global = check(GLOBAL);
         if (global) {
+            if (checkAhead(1, CONST))
+                throw new ParserException("Consts cannot be global (line " + peek().line() + ")");
             if (!checkAhead(1, FUNCTION)) //"global fn ..." should not be parsed here, but instead later on!
                 consume();
             else //This is a "global fn" situation, just return and let the later function handle it
@@ -111,6 +116,18 @@ public class Parser {
         return lhs;
     }
 
+    //const name = expr
+    private Expression parseConst() throws ParserException {
+        int constLine = consume().line();
+        if (!check(NAME))
+            throw new ParserException("Expected name after \"const\" on line " + constLine);
+        String name = consume().getString();
+        if (!check(ASSIGN))
+            throw new ParserException("Expected = to give const \"" + name + "\" a value on line " + constLine);
+        consume();
+        return new Expression.Assign(constLine, false, true, name, parseAssignment());
+    }
+
     private Expression parseOr() throws ParserException {
         Expression lhs = parseAnd();
         while (check(OR)) {
@@ -128,12 +145,49 @@ public class Parser {
     }
 
     private Expression parseComparison() throws ParserException {
-        Expression lhs = parseSum();
+        Expression lhs = parseBitOr();
         while (check(
                 EQUALS, NOT_EQUALS,
                 LESS, GREATER,
                 LESS_EQUAL, GREATER_EQUAL
         )) {
+            Token opToken = consume();
+            Expression.Binary.Op op = Expression.Binary.Op.get(opToken.type());
+            lhs = new Expression.Binary(opToken.line(), lhs, op, parseBitOr());
+        }
+        return lhs;
+    }
+
+    private Expression parseBitOr() throws ParserException {
+        Expression lhs = parseBitXor();
+        while (check(BIT_OR)) {
+            Token opToken = consume();
+            lhs = new Expression.Binary(opToken.line(), lhs, Expression.Binary.Op.BIT_OR, parseBitXor());
+        }
+        return lhs;
+    }
+
+    private Expression parseBitXor() throws ParserException {
+        Expression lhs = parseBitAnd();
+        while (check(BIT_XOR)) {
+            Token opToken = consume();
+            lhs = new Expression.Binary(opToken.line(), lhs, Expression.Binary.Op.BIT_XOR, parseBitAnd());
+        }
+        return lhs;
+    }
+
+    private Expression parseBitAnd() throws ParserException {
+        Expression lhs = parseShift();
+        while (check(BIT_AND)) {
+            Token opToken = consume();
+            lhs = new Expression.Binary(opToken.line(), lhs, Expression.Binary.Op.BIT_AND, parseShift());
+        }
+        return lhs;
+    }
+
+    private Expression parseShift() throws ParserException {
+        Expression lhs = parseSum();
+        while (check(SHIFT_LEFT, SHIFT_RIGHT)) {
             Token opToken = consume();
             Expression.Binary.Op op = Expression.Binary.Op.get(opToken.type());
             lhs = new Expression.Binary(opToken.line(), lhs, op, parseSum());
@@ -162,7 +216,7 @@ public class Parser {
     }
 
     private Expression parseUnary() throws ParserException {
-        if (check(NOT, MINUS)) {
+        if (check(NOT, MINUS, BIT_NOT)) {
             Token opToken = consume();
             Expression.Unary.Op op = Expression.Unary.Op.get(opToken.type());
             return new Expression.Unary(opToken.line(), op, parseUnary());
@@ -244,10 +298,12 @@ public class Parser {
             case LEFT_CURLY -> parseBlockExpression();
             case IF -> parseIfExpression();
             case WHILE -> parseWhileExpression();
+            case FOR -> parseForExpression();
             case LIST_START -> parseListConstructor();
             case TABLE_START -> parseTableConstructor();
             case NULL_LITERAL -> new Expression.Null(consume().line());
             case RETURN -> parseReturn();
+            case YIELD -> parseYield();
             default -> throw new ParserException(peek());
         };
     }
@@ -357,6 +413,32 @@ public class Parser {
         return new Expression.While(whileLine, condition, body);
     }
 
+    //for name in start..limit (step expr)? body
+    private Expression parseForExpression() throws ParserException {
+        int forLine = consume().line();
+        if (!check(NAME))
+            throw new ParserException("Expected name for loop variable of for loop on line " + forLine);
+        String varName = consume().getString();
+        if (!check(IN))
+            throw new ParserException("Expected \"in\" after loop variable of for loop on line " + forLine);
+        consume();
+        Expression start = parseExpression();
+        if (!check(RANGE))
+            throw new ParserException("Expected \"..\" between start and limit of for loop on line " + forLine);
+        consume();
+        Expression limit = parseExpression();
+        Expression step;
+        //"step" is only special here, so it isn't taken away as a variable name
+        if (check(NAME) && peek().getString().equals("step")) {
+            consume();
+            step = parseExpression();
+        } else {
+            step = new Expression.Literal(forLine, 1L);
+        }
+        Expression body = parseExpression();
+        return new Expression.For(forLine, varName, start, limit, step, body);
+    }
+
     private Expression parseListConstructor() throws ParserException {
         int startLine = consume().line();
         if (check(RIGHT_SQUARE)) { //If we find the right square immediately, just consume it and return empty list
@@ -431,6 +513,12 @@ public class Parser {
         return new Expression.Return(startLine, retVal);
     }
 
+    private Expression parseYield() throws ParserException {
+        int startLine = consume().line();
+        Expression value = parseExpression();
+        return new Expression.Yield(startLine, value);
+    }
+
     public static class ParserException extends Exception {
 
         public ParserException(String s) {
@@ -0,0 +1,95 @@
+package petpet.lang.run;
+
+import java.util.List;
+
+/**
+ * Runs one closure over many sets of args in a single go, like dispatching an
+ * event to every entity. The closure is checked once, and then every call goes
+ * straight onto the interpreter's stack, one after another, without going back
+ * through Interpreter.run() or makeCall() in between.
+ *
+ * The args come either as columns, one array per parameter where the nth call
+ * gets the nth element of each, or as a list holding one list of args per call.
+ */
+public final class Batch {
+    private final PetPetClosure closure;
+    public final int paramCount;
+
+    //If non-null, calls that error don't end the batch. Instead, the nth call's
+    //error is put in here, or null if it succeeded, and the rest still run. A failed
+    //call's result is null. Running out of the interpreter's maxCost still ends the batch.
+    //Must be at least as long as the number of calls.
+    public PetPetException[] errors;
+
+    //The most cost a single call may use before it errors, on top of the
+    //interpreter's maxCost, which still applies to the batch as a whole.
+    public long costLimit = Long.MAX_VALUE;
+
+    public Batch(PetPetClosure closure) {
+        if (closure.function.isGenerator)
+            throw new IllegalArgumentException("Cannot batch generator function " + closure.function.name);
+        this.closure = closure;
+        this.paramCount = closure.paramCount;
+    }
+
+    /**
+     * Calls the closure once per element of the columns, of which there must be one
+     * per parameter, all the same length. The nth result goes in results[n], unless
+     * results is null. Returns how many calls errored, which is always 0 unless
+     * errors is set.
+     */
+    public int run(Object[][] columns, Object[] results) {
+        checkArgCount(columns.length);
+        int count = columns.length == 0 ? 0 : columns[0].length;
+        for (Object[] column : columns)
+            checkLength(column.length, count);
+        return run(count, (call, param) -> columns[param][call], results);
+    }
+
+    public int run(double[][] columns, Object[] results) {
+        checkArgCount(columns.length);
+        int count = columns.length == 0 ? 0 : columns[0].length;
+        for (double[] column : columns)
+            checkLength(column.length, count);
+        return run(count, (call, param) -> columns[param][call], results);
+    }
+
+    /**
+     * Calls the closure once per element of the list, each of which is a list of args.
+     */
+    public int run(List<? extends List<?>> tuples, Object[] results) {
+        for (List<?> tuple : tuples)
+            checkArgCount(tuple.size());
+        return run(tuples.size(), (call, param) -> tuples.get(call).get(param), results);
+    }
+
+    /**
+     * Calls the closure count times with no args.
+     */
+    public int run(int count, Object[] results) {
+        checkArgCount(0);
+        return run(count, (call, param) -> null, results);
+    }
+
+    private void checkArgCount(int argCount) {
+        if (argCount != paramCount)
+            throw new IllegalArgumentException("Expected " + paramCount + " args, got " + argCount);
+    }
+
+    private static void checkLength(int length, int count) {
+        if (length != count)
+            throw new IllegalArgumentException("Columns must all be the same length, got " + count + " and " + length);
+    }
+
+    private int run(int count, Args args, Object[] results) {
+        if (results != null && results.length < count)
+            throw new IllegalArgumentException("Results array has room for " + results.length + " results, but there are " + count + " calls");
+        if (errors != null && errors.length < count)
+            throw new IllegalArgumentException("Errors array has room for " + errors.length + " errors, but there are " + count + " calls");
+        return closure.interpreter.runBatch(closure, count, args, results, errors, costLimit);
+    }
+
+    interface Args {
+        Object get(int call, int param);
+    }
+}
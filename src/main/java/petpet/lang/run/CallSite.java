@@ -0,0 +1,104 @@
+package petpet.lang.run;
+
+/**
+ * A closure prepared for being called from java many times, like a callback
+ * fired for every entity on every tick. It's checked to not be a generator
+ * function when the call site is made, so each call only compares the arg
+ * count before putting the args straight on the interpreter's stack.
+ */
+public final class CallSite {
+    private final PetPetClosure closure;
+    private final Interpreter interpreter;
+    public final int paramCount;
+
+    CallSite(PetPetClosure closure) {
+        if (closure.function.isGenerator)
+            throw new IllegalArgumentException("Cannot make a call site for generator function " + closure.function.name);
+        this.closure = closure;
+        this.interpreter = closure.interpreter;
+        this.paramCount = closure.paramCount;
+    }
+
+    public PetPetClosure closure() {
+        return closure;
+    }
+
+    private void checkArgs(int argCount) {
+        if (argCount != paramCount)
+            throw new IllegalArgumentException("Expected " + paramCount + " args, got " + argCount);
+    }
+
+    public Object call0() {
+        checkArgs(0);
+        interpreter.beginCall(closure, 0);
+        return interpreter.finishCall(closure, 0, true);
+    }
+
+    public Object call1(Object arg0) {
+        checkArgs(1);
+        interpreter.beginCall(closure, 1);
+        interpreter.pushArg(arg0);
+        return interpreter.finishCall(closure, 1, true);
+    }
+
+    public Object call2(Object arg0, Object arg1) {
+        checkArgs(2);
+        interpreter.beginCall(closure, 2);
+        interpreter.pushArg(arg0);
+        interpreter.pushArg(arg1);
+        return interpreter.finishCall(closure, 2, true);
+    }
+
+    public Object call3(Object arg0, Object arg1, Object arg2) {
+        checkArgs(3);
+        interpreter.beginCall(closure, 3);
+        interpreter.pushArg(arg0);
+        interpreter.pushArg(arg1);
+        interpreter.pushArg(arg2);
+        return interpreter.finishCall(closure, 3, true);
+    }
+
+    public Object call4(Object arg0, Object arg1, Object arg2, Object arg3) {
+        checkArgs(4);
+        interpreter.beginCall(closure, 4);
+        interpreter.pushArg(arg0);
+        interpreter.pushArg(arg1);
+        interpreter.pushArg(arg2);
+        interpreter.pushArg(arg3);
+        return interpreter.finishCall(closure, 4, true);
+    }
+
+    public Object callD(double arg0) {
+        checkArgs(1);
+        interpreter.beginCall(closure, 1);
+        interpreter.pushArg(arg0);
+        return interpreter.finishCall(closure, 1, true);
+    }
+
+    public Object callD(double arg0, double arg1) {
+        checkArgs(2);
+        interpreter.beginCall(closure, 2);
+        interpreter.pushArg(arg0);
+        interpreter.pushArg(arg1);
+        return interpreter.finishCall(closure, 2, true);
+    }
+
+    public Object callD(double arg0, double arg1, double arg2) {
+        checkArgs(3);
+        interpreter.beginCall(closure, 3);
+        interpreter.pushArg(arg0);
+        interpreter.pushArg(arg1);
+        interpreter.pushArg(arg2);
+        return interpreter.finishCall(closure, 3, true);
+    }
+
+    public Object callD(double arg0, double arg1, double arg2, double arg3) {
+        checkArgs(4);
+        interpreter.beginCall(closure, 4);
+        interpreter.pushArg(arg0);
+        interpreter.pushArg(arg1);
+        interpreter.pushArg(arg2);
+        interpreter.pushArg(arg3);
+        return interpreter.finishCall(closure, 4, true);
+    }
+}
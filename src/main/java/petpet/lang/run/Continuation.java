@@ -0,0 +1,90 @@
+package petpet.lang.run;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A script call that ran out of budget and was suspended, made with
+ * PetPetClosure.callSliced(). Holds everything needed to pick up again
+ * at exactly the instruction it stopped at: its call frames, its slice
+ * of the stack, and the upvalues that were still open.
+ *
+ * While suspended, the interpreter is free to run other things, including
+ * other continuations. Only one thread may resume a continuation at once,
+ * and it must be the thread that owns the interpreter at the time.
+ *
+ * A script can only be suspended while the interpreter is running its own
+ * bytecode. If the budget runs out inside a java function that calls back
+ * into PetPet (list.map() with a script function, for example), the call
+ * finishes first, and the script is suspended right after it returns.
+ */
+public class Continuation {
+
+    public final Interpreter interpreter;
+
+    //Filled in by the interpreter when suspending
+    SavedFrames saved;
+    //Non-null if it was parked by an async java function, and is waiting on this to complete
+    CompletableFuture<?> pendingFuture;
+
+    private boolean done, running, failed;
+    private Object result;
+
+    Continuation(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    /**
+     * Continues running for roughly the given amount of cost, the same unit
+     * as Interpreter.cost. Returns true if the script finished, in which
+     * case its return value is available from getResult().
+     */
+    public boolean resume(long budget) {
+        if (done)
+            return true;
+        if (failed)
+            throw new IllegalStateException("Cannot resume a script that errored");
+        if (running)
+            throw new IllegalStateException("Continuation is already running");
+        if (isWaiting())
+            return false;
+        running = true;
+        try {
+            interpreter.resumeSliced(this, budget);
+        } catch (RuntimeException | Error e) {
+            failed = true;
+            throw e;
+        } finally {
+            running = false;
+        }
+        return done;
+    }
+
+    /**
+     * Whether it's waiting on the future of an async java function. Resuming
+     * does nothing until the future completes.
+     */
+    public boolean isWaiting() {
+        return pendingFuture != null && !pendingFuture.isDone();
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    public Object getResult() {
+        if (!done)
+            throw new IllegalStateException("Script hasn't finished yet");
+        return result;
+    }
+
+    void finish(Object result) {
+        this.result = result;
+        done = true;
+        saved = null;
+    }
+
+    @Override
+    public String toString() {
+        return "Continuation[" + (done ? "done" : failed ? "failed" : saved.closures[0].function.name) + "]";
+    }
+}
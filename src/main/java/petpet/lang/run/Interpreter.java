@@ -1,8 +1,15 @@
 package petpet.lang.run;
 
+import petpet.lang.compile.Chunk;
 import petpet.types.*;
+import petpet.types.libraries.MathLibrary;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 import static petpet.lang.compile.Bytecode.*;
 
@@ -12,10 +19,23 @@ import static petpet.lang.compile.Bytecode.*;
 public class Interpreter {
 
     //temp public
-    public final Map<Class<?>, PetPetClass> classMap = new IdentityHashMap<>(); //keys are classes, identity works
-    public final Map<String, Object> globals = new PetPetTable<>();
+    //Changes should go through put() and remove(), which clear the lookup caches below
+    public final Map<Class<?>, PetPetClass> classMap = new ClassMap(); //keys are classes, identity works
+    public final Map<String, Object> globals;
+
+    //What getPetPetClass() found for each java class, filled in as they're looked up. The builtin
+    //types have their own fields, and every other class has a slot in classSlots, numbered by CLASS_SLOTS.
+    private static final ClassValue<Integer> CLASS_SLOTS = new ClassValue<>() {
+        private int nextSlot = 0;
+        @Override
+        protected synchronized Integer computeValue(Class<?> type) {
+            return nextSlot++;
+        }
+    };
+    private PetPetClass doubleClass, longClass, stringClass, booleanClass, listClass, tableClass;
+    private PetPetClass[] classSlots = new PetPetClass[16];
 
-    private Object[] stack = new Object[16];
+    Object[] stack = new Object[16]; //Package-private so upvalues can reach it directly
     private int stackTop = 0;
 
     public int maxStackFrames = 256; //256 default
@@ -23,15 +43,63 @@ public class Interpreter {
     private int callStackTop = 0;
 
     public Interpreter() {
+        this(new PetPetTable<>());
+    }
+
+    private Interpreter(Map<String, Object> globals) {
+        this.globals = globals;
         for (int i = 0; i < callStack.length; i++)
             callStack[i] = new CallFrame();
     }
 
-    private Upvalue upvalueList; //upvalues form a linked list
+    /**
+     * A new interpreter for running pure closures on another thread, as list.pmap() does.
+     * It shares this interpreter's globals and starts with a copy of its classes, so it
+     * must only be used while nothing is changing either of them.
+     */
+    public Interpreter fork() {
+        Interpreter fork = new Interpreter(globals);
+        fork.classMap.putAll(classMap);
+        fork.maxStackFrames = maxStackFrames;
+        fork.asyncExecutor = asyncExecutor;
+        return fork;
+    }
+
+    //The call profiles of chunks this interpreter has run, see profileCall(). Thrown away
+    //when there get to be too many, which only means counting the calls again.
+    private final IdentityHashMap<Chunk, CallProfile> callProfiles = new IdentityHashMap<>();
+    private static final int MAX_CALL_PROFILES = 1024;
+
+    //The closures handed out for functions that capture nothing, see sharedClosure()
+    private final IdentityHashMap<PetPetFunction, PetPetClosure> sharedClosures = new IdentityHashMap<>();
+
+    //Open upvalues, indexed by the stack slot they point at. Nothing at or above
+    //openUpvalueTop is open, so closing only has to look at the slots below it.
+    private Upvalue[] openUpvalues = new Upvalue[16];
+    private int openUpvalueTop;
 
     public long cost = 0; //The current cost counter
     public long maxCost = Long.MAX_VALUE; //The max cost allowed before the runnable is called
 
+    //How many times in a row a call has to go to the same small function before that function
+    //gets inlined there, see Inliner. 0 turns inlining off.
+    public int inlineThreshold = 100;
+
+    //Time slicing. A sliced call suspends once cost passes sliceEnd, but only
+    //while no java function is between it and the running frame (runDepth == sliceDepth).
+    private long sliceEnd = Long.MAX_VALUE;
+    private int runDepth, sliceDepth = -1;
+    private int sliceFrameBase, sliceStackBase;
+    private Continuation sliceContinuation;
+
+    //The lower of maxCost and the end of the slice, which is all the run loop checks the cost against.
+    //Worked out again whenever java code might have changed either, see updateCostLimit().
+    private long costLimit = Long.MAX_VALUE;
+
+    //Where scripts parked by async java functions are resumed, once the future they wait on completes.
+    //Not the thread that completed it, since that's often an I/O thread which shouldn't run scripts.
+    public Executor asyncExecutor = ForkJoinPool.commonPool();
+
     //Called when hitting the max cost, default is to throw exception
     public Runnable onHitMaxCost = () -> runtimeException("Hit the max allowed instructions of " + maxCost);
 
@@ -42,27 +110,402 @@ public class Interpreter {
             push(closure);
         for (Object arg : args)
             push(arg);
-        makeCall(closure, args.length, true, invocation);
-        run();
+        if (makeCall(closure, args.length, true, invocation)) { //false for generator functions
+            runDepth++;
+            try {
+                run();
+            } finally {
+                runDepth--;
+            }
+        }
+        return pop();
+    }
+
+    //Fixed arity calls from java, see PetPetClosure.call0() and CallSite. beginCall() makes room
+    //and pushes the closure, then each arg goes straight on the stack with pushArg(), and
+    //finishCall() runs it. If checked, the closure is known to take that many args and not be
+    //a generator function, so the checks in makeCall() are skipped.
+    void beginCall(PetPetClosure closure, int argCount) {
+        ensureStack(stackTop + argCount + 1);
+        stack[stackTop++] = closure;
+    }
+
+    void pushArg(Object arg) {
+        stack[stackTop++] = PetPetNumber.normalize(arg);
+    }
+
+    void pushArg(double arg) {
+        stack[stackTop++] = PetPetNumber.box(arg);
+    }
+
+    Object finishCall(PetPetClosure closure, int argCount, boolean checked) {
+        if (checked) {
+            pushCallStack(closure, 0, stackTop-argCount-1, true);
+            if (callStackTop > maxStackFrames)
+                runtimeException("Stack overflow! More than the max stack frames of " + maxStackFrames);
+        } else if (!makeCall(closure, argCount, true, false)) {
+            return pop(); //generator functions
+        }
+        runDepth++;
+        try {
+            run();
+        } finally {
+            runDepth--;
+        }
+        return pop();
+    }
+
+    //Runs all the calls of a Batch in one go. Args are pushed straight into the new frame,
+    //and if errors is non-null, a failed call is cleaned up and recorded so the rest can run.
+    int runBatch(PetPetClosure closure, int count, Batch.Args args, Object[] results, PetPetException[] errors, long costLimit) {
+        int paramCount = closure.paramCount;
+        int stackBase = stackTop;
+        int frameBase = callStackTop;
+        if (frameBase + 1 > maxStackFrames)
+            runtimeException("Stack overflow! More than the max stack frames of " + maxStackFrames);
+
+        BatchCostLimit limit = costLimit == Long.MAX_VALUE ? null : new BatchCostLimit(costLimit);
+        int failures = 0;
+        runDepth++;
+        try {
+            for (int i = 0; i < count; i++) {
+                beginCall(closure, paramCount);
+                for (int p = 0; p < paramCount; p++)
+                    pushArg(args.get(i, p));
+                pushCallStack(closure, 0, stackBase, true);
+                if (limit != null)
+                    limit.begin();
+                Object result;
+                try {
+                    run();
+                    result = pop();
+                } catch (PetPetException e) {
+                    //Running out of the interpreter's own max cost ends the whole batch
+                    if (errors == null || cost > (limit != null ? limit.outerMax : maxCost))
+                        throw e;
+                    discardAbove(frameBase, stackBase);
+                    callStackTop = frameBase; //runtimeException() empties the whole call stack
+                    errors[i] = e;
+                    if (results != null)
+                        results[i] = null;
+                    failures++;
+                    continue;
+                } finally {
+                    if (limit != null)
+                        limit.end();
+                }
+                if (results != null)
+                    results[i] = result;
+                if (errors != null)
+                    errors[i] = null;
+            }
+        } catch (RuntimeException | Error e) {
+            discardAbove(frameBase, stackBase);
+            throw e;
+        } finally {
+            runDepth--;
+        }
+        return failures;
+    }
+
+    //Lowers maxCost to the end of the current call's budget while a batch call runs. If
+    //the real max is what got hit, that's handed to the real onHitMaxCost instead.
+    private final class BatchCostLimit implements Runnable {
+        private final long costLimit;
+        private long outerMax;
+        private Runnable outerOnHit;
+
+        BatchCostLimit(long costLimit) {
+            this.costLimit = costLimit;
+        }
+
+        void begin() {
+            outerMax = maxCost;
+            outerOnHit = onHitMaxCost;
+            maxCost = costLimit >= outerMax - cost ? outerMax : cost + costLimit;
+            onHitMaxCost = this;
+        }
+
+        void end() {
+            maxCost = outerMax;
+            onHitMaxCost = outerOnHit;
+        }
+
+        @Override
+        public void run() {
+            long callEnd = maxCost;
+            if (cost > outerMax) {
+                end();
+                outerOnHit.run();
+                //It may have raised the max instead of erroring
+                outerMax = maxCost;
+                outerOnHit = onHitMaxCost;
+                onHitMaxCost = this;
+                maxCost = Math.min(callEnd, outerMax);
+                if (cost <= callEnd)
+                    return;
+            }
+            runtimeException("Hit the per-call cost limit of " + costLimit);
+        }
+    }
+
+    /**
+     * Calls the closure, but suspends it once it has used up the given budget
+     * of cost. The returned continuation may already be done, if the call
+     * finished within the budget.
+     */
+    public Continuation runSliced(PetPetClosure closure, long budget, Object... args) {
+        Continuation continuation = new Continuation(this);
+        int stackBase = stackTop;
+        int frameBase = callStackTop;
+        push(closure);
+        for (Object arg : args)
+            push(arg);
+        if (makeCall(closure, args.length, true, false))
+            runSlice(continuation, frameBase, stackBase, budget);
+        else
+            continuation.finish(pop()); //generator functions return right away
+        return continuation;
+    }
+
+    //Runs the generator's frame until it yields or returns, and gives back the value
+    Object resumeGenerator(PetPetGenerator generator) {
+        if (generator.interpreter != this)
+            throw new IllegalArgumentException("Generator belongs to a different interpreter");
+        restoreFrames(generator.saved);
+        generator.saved = null;
+        generator.yielded = false;
+        peekCallStack().generator = generator;
+        runDepth++;
+        try {
+            run();
+        } finally {
+            runDepth--;
+        }
         return pop();
     }
 
+    void resumeSliced(Continuation continuation, long budget) {
+        if (continuation.interpreter != this)
+            throw new IllegalArgumentException("Continuation belongs to a different interpreter");
+        //If it was waiting on an async java function, get the result first
+        CompletableFuture<?> awaited = continuation.pendingFuture;
+        continuation.pendingFuture = null;
+        Object awaitedResult = null;
+        Throwable awaitedFailure = null;
+        if (awaited != null) {
+            try {
+                awaitedResult = awaited.join();
+            } catch (CompletionException | CancellationException e) {
+                awaitedFailure = e.getCause() != null ? e.getCause() : e;
+            }
+        }
+
+        int stackBase = stackTop;
+        int frameBase = callStackTop;
+        restoreFrames(continuation.saved);
+        continuation.saved = null;
+        if (awaited != null) {
+            if (awaitedFailure != null) {
+                try {
+                    javaFailure(awaitedFailure);
+                } catch (RuntimeException e) {
+                    discardAbove(frameBase, stackBase);
+                    throw e;
+                }
+            }
+            awaitedResult = PetPetNumber.normalize(awaitedResult);
+            stack[stackTop-1] = awaitedResult; //replaces the placeholder left by the call
+        }
+        runSlice(continuation, frameBase, stackBase, budget);
+    }
+
+    /**
+     * Calls the closure, and whenever it calls an async java function whose
+     * future isn't done yet, parks it until the future completes instead of
+     * blocking. The returned future completes with the closure's result.
+     * Resuming happens on the asyncExecutor while holding this interpreter's
+     * lock, so anything else using this interpreter at the same time should
+     * synchronize on it as well.
+     */
+    public CompletableFuture<Object> runAsync(PetPetClosure closure, Object... args) {
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        Continuation continuation;
+        try {
+            synchronized (this) {
+                continuation = runSliced(closure, Long.MAX_VALUE, args);
+            }
+        } catch (Throwable t) {
+            result.completeExceptionally(t);
+            return result;
+        }
+        driveAsync(continuation, result);
+        return result;
+    }
+
+    private void driveAsync(Continuation continuation, CompletableFuture<Object> result) {
+        try {
+            while (!continuation.isDone()) {
+                CompletableFuture<?> pending = continuation.pendingFuture;
+                if (!pending.isDone()) {
+                    pending.whenCompleteAsync((v, e) -> driveAsync(continuation, result), asyncExecutor);
+                    return;
+                }
+                synchronized (this) {
+                    continuation.resume(Long.MAX_VALUE);
+                }
+            }
+            result.complete(continuation.getResult());
+        } catch (Throwable t) {
+            result.completeExceptionally(t);
+        }
+    }
+
+    private void runSlice(Continuation continuation, int frameBase, int stackBase, long budget) {
+        long prevSliceEnd = sliceEnd;
+        int prevSliceDepth = sliceDepth, prevFrameBase = sliceFrameBase, prevStackBase = sliceStackBase;
+        Continuation prevContinuation = sliceContinuation;
+
+        sliceEnd = budget >= Long.MAX_VALUE - cost ? Long.MAX_VALUE : cost + budget;
+        sliceDepth = ++runDepth;
+        sliceFrameBase = frameBase;
+        sliceStackBase = stackBase;
+        sliceContinuation = continuation;
+        try {
+            if (run())
+                continuation.finish(pop());
+        } catch (RuntimeException | Error e) {
+            discardAbove(frameBase, stackBase);
+            throw e;
+        } finally {
+            runDepth--;
+            sliceEnd = prevSliceEnd;
+            sliceDepth = prevSliceDepth;
+            sliceFrameBase = prevFrameBase;
+            sliceStackBase = prevStackBase;
+            sliceContinuation = prevContinuation;
+        }
+    }
+
+    //Throws away what a failed sliced call left behind, so it doesn't build up on the stack
+    private void discardAbove(int frameBase, int stackBase) {
+        closeUpvalues(stackBase);
+        if (stackTop > stackBase) {
+            Arrays.fill(stack, stackBase, stackTop, null);
+            stackTop = stackBase;
+        }
+        callStackTop = Math.min(callStackTop, frameBase);
+    }
+
+    //Moves the frames, stack slice and open upvalues of the sliced call into its continuation
+    private void suspend() {
+        sliceContinuation.saved = saveFrames(sliceFrameBase, sliceStackBase);
+    }
+
+    //Moves the frames from frameBase up, and the stack from stackBase up, out of the interpreter
+    private SavedFrames saveFrames(int frameBase, int stackBase) {
+        SavedFrames saved = new SavedFrames();
+        int frameCount = callStackTop - frameBase;
+        saved.closures = new PetPetClosure[frameCount];
+        saved.ips = new int[frameCount];
+        saved.fps = new int[frameCount];
+        saved.intrinsics = new Intrinsic.Loop[frameCount];
+        saved.tailCalls = new int[frameCount];
+        saved.chunks = new Chunk[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            CallFrame frame = callStack[frameBase + i];
+            saved.closures[i] = frame.closure;
+            saved.ips[i] = frame.ip;
+            saved.fps[i] = frame.fp - stackBase;
+            saved.intrinsics[i] = frame.intrinsic;
+            saved.tailCalls[i] = frame.tailCalls;
+            saved.chunks[i] = frame.chunk;
+            frame.closure = null;
+            frame.chunk = null;
+            frame.generator = null;
+            frame.intrinsic = null;
+        }
+        callStackTop = frameBase;
+
+        //Close the open upvalues for now, so they keep working while saved
+        int upvalueCount = 0;
+        for (int i = openUpvalueTop - 1; i >= stackBase; i--)
+            if (openUpvalues[i] != null)
+                upvalueCount++;
+        saved.openUpvalues = new Upvalue[upvalueCount];
+        saved.upvalueIndices = new int[upvalueCount];
+        for (int i = openUpvalueTop - 1, j = 0; j < upvalueCount; i--) {
+            Upvalue upvalue = openUpvalues[i];
+            if (upvalue == null)
+                continue;
+            saved.openUpvalues[j] = upvalue;
+            saved.upvalueIndices[j++] = i - stackBase;
+            upvalue.close();
+            openUpvalues[i] = null;
+        }
+        openUpvalueTop = Math.min(openUpvalueTop, stackBase);
+
+        saved.stack = Arrays.copyOfRange(stack, stackBase, stackTop);
+        Arrays.fill(stack, stackBase, stackTop, null);
+        stackTop = stackBase;
+        return saved;
+    }
+
+    //Puts saved frames back on top of the stack. The first one is treated as called from java.
+    private void restoreFrames(SavedFrames saved) {
+        int stackBase = stackTop;
+        Object[] savedStack = saved.stack;
+        ensureStack(stackTop + savedStack.length);
+        System.arraycopy(savedStack, 0, stack, stackTop, savedStack.length);
+        stackTop += savedStack.length;
+
+        //Reopen the upvalues, at their slots in the restored stack
+        Upvalue[] upvalues = saved.openUpvalues;
+        if (stackTop > openUpvalues.length)
+            openUpvalues = Arrays.copyOf(openUpvalues, stack.length);
+        for (int i = upvalues.length - 1; i >= 0; i--) {
+            Upvalue upvalue = upvalues[i];
+            int index = stackBase + saved.upvalueIndices[i];
+            stack[index] = upvalue.value; //might have been changed while saved
+            upvalue.value = null;
+            upvalue.idx = index;
+            openUpvalues[index] = upvalue;
+            openUpvalueTop = Math.max(openUpvalueTop, index + 1);
+        }
+
+        for (int i = 0; i < saved.closures.length; i++) {
+            PetPetClosure closure = saved.closures[i];
+            Chunk chunk = saved.chunks[i] != null ? saved.chunks[i] : closure.function.entryChunk();
+            pushCallStack(closure, chunk, saved.ips[i], stackBase + saved.fps[i], i == 0);
+            peekCallStack().intrinsic = saved.intrinsics[i];
+            peekCallStack().tailCalls = saved.tailCalls[i];
+        }
+        if (callStackTop > maxStackFrames)
+            runtimeException("Stack overflow! More than the max stack frames of " + maxStackFrames);
+    }
+
     //Unsigned Byte: curBytes[frame.ip++] & 0xff
     //Signed Short: (short) (((curBytes[frame.ip++] & 0xff) << 8) + (curBytes[frame.ip++] & 0xff))
     //Unsigned short: (((curBytes[frame.ip++] << 8) & 0xffff) | (curBytes[frame.ip++] & 0xff)) & 0xffff
 
-    private void run() {
+    //Returns true once the frame called from java returns, or false if a sliced call was suspended
+    private boolean run() {
         CallFrame frame = peekCallStack();
-        byte[] curBytes = frame.closure.function.chunk.bytes;
-        Object[] constants = frame.closure.function.chunk.constants;
+        byte[] curBytes = frame.chunk.bytes;
+        Object[] constants = frame.chunk.constants;
+        updateCostLimit();
         while (true) {
-            incCost();
+            if (cost++ > costLimit && costLimitHit()) {
+                cost--; //this instruction didn't run yet
+                suspend();
+                return false;
+            }
 //            System.out.println(NAMES[curBytes[frame.ip]]);
             switch (curBytes[frame.ip++]) {
-                case CONSTANT -> push(constants[curBytes[frame.ip++] & 0xff]);
-                case BIG_CONSTANT -> push(constants[(((curBytes[frame.ip++] << 8) & 0xff) | (curBytes[frame.ip++] & 0xff)) & 0xffff]);
+                case CONSTANT -> pushNoCheck(constants[curBytes[frame.ip++] & 0xff]);
+                case BIG_CONSTANT -> pushNoCheck(constants[(((curBytes[frame.ip++] << 8) & 0xff) | (curBytes[frame.ip++] & 0xff)) & 0xffff]);
 
-                case PUSH_NULL -> push(null);
+                case PUSH_NULL -> pushNoCheck(null);
                 case POP -> pop();
 
                 //Temp operators
@@ -79,12 +522,16 @@ public class Interpreter {
                         penalizeCost(((long) other.length() + s.length()) / 16);
                         pushNoCheck(other + s);
                     } else if (l instanceof Double dl && r instanceof Double dr)
-                        pushNoCheck(dl + dr);
+                        pushNoCheck(PetPetNumber.box(dl + dr));
+                    else if (l instanceof Long ll && r instanceof Long lr)
+                        pushNoCheck(PetPetNumber.add(ll, lr));
+                    else if (l instanceof Number nl && r instanceof Number nr)
+                        pushNoCheck(PetPetNumber.box(nl.doubleValue() + nr.doubleValue()));
                     else {
                         if (callMetaBinary(l, r, "add")) {
                             frame = peekCallStack();
-                            curBytes = frame.closure.function.chunk.bytes;
-                            constants = frame.closure.function.chunk.constants;
+                            curBytes = frame.chunk.bytes;
+                            constants = frame.chunk.constants;
                         }
                     }
                 }
@@ -92,57 +539,77 @@ public class Interpreter {
                     Object r = pop();
                     Object l = pop();
                     if (l instanceof Double dl && r instanceof Double dr)
-                        pushNoCheck(dl - dr);
+                        pushNoCheck(PetPetNumber.box(dl - dr));
+                    else if (l instanceof Long ll && r instanceof Long lr)
+                        pushNoCheck(PetPetNumber.sub(ll, lr));
+                    else if (l instanceof Number nl && r instanceof Number nr)
+                        pushNoCheck(PetPetNumber.box(nl.doubleValue() - nr.doubleValue()));
                     else if (callMetaBinary(l, r, "sub")) {
                         frame = peekCallStack();
-                        curBytes = frame.closure.function.chunk.bytes;
-                        constants = frame.closure.function.chunk.constants;
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
                     }
                 }
                 case MUL -> {
                     Object r = pop();
                     Object l = pop();
                     if (l instanceof Double dl && r instanceof Double dr)
-                        pushNoCheck(dl * dr);
+                        pushNoCheck(PetPetNumber.box(dl * dr));
+                    else if (l instanceof Long ll && r instanceof Long lr)
+                        pushNoCheck(PetPetNumber.mul(ll, lr));
+                    else if (l instanceof Number nl && r instanceof Number nr)
+                        pushNoCheck(PetPetNumber.box(nl.doubleValue() * nr.doubleValue()));
                     else if (callMetaBinary(l, r, "mul")) {
                         frame = peekCallStack();
-                        curBytes = frame.closure.function.chunk.bytes;
-                        constants = frame.closure.function.chunk.constants;
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
                     }
                 }
                 case DIV -> {
                     Object r = pop();
                     Object l = pop();
                     if (l instanceof Double dl && r instanceof Double dr)
-                        pushNoCheck(dl / dr);
+                        pushNoCheck(PetPetNumber.box(dl / dr));
+                    else if (l instanceof Long ll && r instanceof Long lr)
+                        pushNoCheck(PetPetNumber.div(ll, lr));
+                    else if (l instanceof Number nl && r instanceof Number nr)
+                        pushNoCheck(PetPetNumber.box(nl.doubleValue() / nr.doubleValue()));
                     else if (callMetaBinary(l, r, "div")) {
                         frame = peekCallStack();
-                        curBytes = frame.closure.function.chunk.bytes;
-                        constants = frame.closure.function.chunk.constants;
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
                     }
                 }
                 case MOD -> {
                     Object r = pop();
                     Object l = pop();
                     if (l instanceof Double dl && r instanceof Double dr)
-                        pushNoCheck(dl % dr);
+                        pushNoCheck(PetPetNumber.box(dl % dr));
+                    else if (l instanceof Long ll && r instanceof Long lr)
+                        pushNoCheck(PetPetNumber.mod(ll, lr));
+                    else if (l instanceof Number nl && r instanceof Number nr)
+                        pushNoCheck(PetPetNumber.box(nl.doubleValue() % nr.doubleValue()));
                     else if (callMetaBinary(l, r, "mod")) {
                         frame = peekCallStack();
-                        curBytes = frame.closure.function.chunk.bytes;
-                        constants = frame.closure.function.chunk.constants;
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
                     }
                 }
-                case EQ -> push(Objects.equals(pop(), pop()));
-                case NEQ -> push(!Objects.equals(pop(), pop()));
+                case EQ -> pushNoCheck(PetPetNumber.equal(pop(), pop()));
+                case NEQ -> pushNoCheck(!PetPetNumber.equal(pop(), pop()));
                 case LT -> {
                     Object r = pop();
                     Object l = pop();
                     if (l instanceof Double dl && r instanceof Double dr)
                         pushNoCheck(dl < dr);
+                    else if (l instanceof Long ll && r instanceof Long lr)
+                        pushNoCheck(ll < lr);
+                    else if (l instanceof Number nl && r instanceof Number nr)
+                        pushNoCheck(nl.doubleValue() < nr.doubleValue());
                     else if (callMetaBinary(l, r, "lt")) {
                         frame = peekCallStack();
-                        curBytes = frame.closure.function.chunk.bytes;
-                        constants = frame.closure.function.chunk.constants;
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
                     }
                 }
                 case GT -> {
@@ -150,10 +617,14 @@ public class Interpreter {
                     Object l = pop();
                     if (l instanceof Double dl && r instanceof Double dr)
                         pushNoCheck(dl > dr);
+                    else if (l instanceof Long ll && r instanceof Long lr)
+                        pushNoCheck(ll > lr);
+                    else if (l instanceof Number nl && r instanceof Number nr)
+                        pushNoCheck(nl.doubleValue() > nr.doubleValue());
                     else if (callMetaBinary(l, r, "gt")) {
                         frame = peekCallStack();
-                        curBytes = frame.closure.function.chunk.bytes;
-                        constants = frame.closure.function.chunk.constants;
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
                     }
                 }
                 case LTE -> {
@@ -161,10 +632,14 @@ public class Interpreter {
                     Object l = pop();
                     if (l instanceof Double dl && r instanceof Double dr)
                         pushNoCheck(dl <= dr);
+                    else if (l instanceof Long ll && r instanceof Long lr)
+                        pushNoCheck(ll <= lr);
+                    else if (l instanceof Number nl && r instanceof Number nr)
+                        pushNoCheck(nl.doubleValue() <= nr.doubleValue());
                     else if (callMetaBinary(l, r, "lte")) {
                         frame = peekCallStack();
-                        curBytes = frame.closure.function.chunk.bytes;
-                        constants = frame.closure.function.chunk.constants;
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
                     }
                 }
                 case GTE -> {
@@ -172,21 +647,94 @@ public class Interpreter {
                     Object l = pop();
                     if (l instanceof Double dl && r instanceof Double dr)
                         pushNoCheck(dl >= dr);
+                    else if (l instanceof Long ll && r instanceof Long lr)
+                        pushNoCheck(ll >= lr);
+                    else if (l instanceof Number nl && r instanceof Number nr)
+                        pushNoCheck(nl.doubleValue() >= nr.doubleValue());
                     else if (callMetaBinary(l, r, "gte")) {
                         frame = peekCallStack();
-                        curBytes = frame.closure.function.chunk.bytes;
-                        constants = frame.closure.function.chunk.constants;
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
                     }
                 }
 
                 case NEGATE -> {
                     Object o = pop();
                     if (o instanceof Double dl)
-                        pushNoCheck(-dl);
+                        pushNoCheck(PetPetNumber.box(-dl));
+                    else if (o instanceof Long ll)
+                        pushNoCheck(ll == Long.MIN_VALUE ? (Object) (-(double) ll) : PetPetNumber.box(-ll));
                     else if (callMetaUnary(o, "neg")) {
                         frame = peekCallStack();
-                        curBytes = frame.closure.function.chunk.bytes;
-                        constants = frame.closure.function.chunk.constants;
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
+                    }
+                }
+                case BIT_AND -> {
+                    Object r = pop();
+                    Object l = pop();
+                    if (l instanceof Long ll && r instanceof Long lr)
+                        pushNoCheck(PetPetNumber.box(ll & lr));
+                    else if (callBitwise(l, r, "band")) {
+                        frame = peekCallStack();
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
+                    }
+                }
+                case BIT_OR -> {
+                    Object r = pop();
+                    Object l = pop();
+                    if (l instanceof Long ll && r instanceof Long lr)
+                        pushNoCheck(PetPetNumber.box(ll | lr));
+                    else if (callBitwise(l, r, "bor")) {
+                        frame = peekCallStack();
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
+                    }
+                }
+                case BIT_XOR -> {
+                    Object r = pop();
+                    Object l = pop();
+                    if (l instanceof Long ll && r instanceof Long lr)
+                        pushNoCheck(PetPetNumber.box(ll ^ lr));
+                    else if (callBitwise(l, r, "bxor")) {
+                        frame = peekCallStack();
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
+                    }
+                }
+                case SHL -> {
+                    Object r = pop();
+                    Object l = pop();
+                    if (l instanceof Long ll && r instanceof Long lr)
+                        pushNoCheck(PetPetNumber.shl(ll, lr));
+                    else if (callBitwise(l, r, "shl")) {
+                        frame = peekCallStack();
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
+                    }
+                }
+                case SHR -> {
+                    Object r = pop();
+                    Object l = pop();
+                    if (l instanceof Long ll && r instanceof Long lr)
+                        pushNoCheck(PetPetNumber.shr(ll, lr));
+                    else if (callBitwise(l, r, "shr")) {
+                        frame = peekCallStack();
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
+                    }
+                }
+                case BIT_NOT -> {
+                    Object o = pop();
+                    if (o instanceof Long ll)
+                        pushNoCheck(PetPetNumber.box(~ll));
+                    else if (o instanceof Number && PetPetNumber.toLong(o) != null)
+                        pushNoCheck(PetPetNumber.box(~PetPetNumber.toLong(o)));
+                    else if (callMetaUnary(o, "bnot")) {
+                        frame = peekCallStack();
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
                     }
                 }
                 case NOT -> pushNoCheck(isFalsy(pop()));
@@ -198,25 +746,46 @@ public class Interpreter {
                     popCallStack();
 
                     while (frame.fp < stackTop) stackTop--;
-                    push(result);
-
-                    if (frame.wasJavaCall) return; //return for real
+                    Intrinsic.Loop loop = frame.intrinsic;
+                    if (loop != null) {
+                        //Called by an intrinsic, so hand it the result and carry on with the loop
+                        try {
+                            loop.accept(result);
+                        } catch (PetPetException e) {
+                            runtimeException(e.getMessage());
+                        }
+                        continueIntrinsic(loop);
+                    } else {
+                        push(result);
+                        if (frame.wasJavaCall) return true; //return for real
+                    }
                     frame = peekCallStack();
-                    curBytes = frame.closure.function.chunk.bytes;
-                    constants = frame.closure.function.chunk.constants;
+                    curBytes = frame.chunk.bytes;
+                    constants = frame.chunk.constants;
+                }
+
+                case YIELD -> {
+                    //Generator frames are always resumed from java, so this returns to there
+                    Object value = pop();
+                    pushNoCheck(null); //What the yield evaluates to, once resumed
+                    PetPetGenerator generator = frame.generator;
+                    generator.saved = saveFrames(callStackTop-1, frame.fp);
+                    generator.yielded = true;
+                    push(value);
+                    return true;
                 }
 
                 case SET_GLOBAL -> globals.put((String) constants[curBytes[frame.ip++] & 0xff], peek());
                 case BIG_SET_GLOBAL -> globals.put((String) constants[(((curBytes[frame.ip++] << 8) & 0xffff) | (curBytes[frame.ip++] & 0xff)) & 0xffff], peek());
 
-                case LOAD_GLOBAL -> push(globals.get((String) constants[curBytes[frame.ip++] & 0xff]));
-                case BIG_LOAD_GLOBAL -> push(globals.get((String) constants[(((curBytes[frame.ip++] << 8) & 0xffff) | (curBytes[frame.ip++] & 0xff)) & 0xffff]));
+                case LOAD_GLOBAL -> pushNoCheck(globals.get((String) constants[curBytes[frame.ip++] & 0xff]));
+                case BIG_LOAD_GLOBAL -> pushNoCheck(globals.get((String) constants[(((curBytes[frame.ip++] << 8) & 0xffff) | (curBytes[frame.ip++] & 0xff)) & 0xffff]));
 
                 case SET_LOCAL -> stack[frame.fp+(curBytes[frame.ip++] & 0xff)] = peek();
                 case BIG_SET_LOCAL -> stack[frame.fp+((((curBytes[frame.ip++] << 8) & 0xffff) | (curBytes[frame.ip++] & 0xff)) & 0xffff)] = peek();
 
-                case LOAD_LOCAL -> push(stack[frame.fp+(curBytes[frame.ip++] & 0xff)]);
-                case BIG_LOAD_LOCAL -> push(stack[frame.fp+((((curBytes[frame.ip++] << 8) & 0xffff) | (curBytes[frame.ip++] & 0xff)) & 0xffff)]);
+                case LOAD_LOCAL -> pushNoCheck(stack[frame.fp+(curBytes[frame.ip++] & 0xff)]);
+                case BIG_LOAD_LOCAL -> pushNoCheck(stack[frame.fp+((((curBytes[frame.ip++] << 8) & 0xffff) | (curBytes[frame.ip++] & 0xff)) & 0xffff)]);
 
                 case POP_OFFSET_1 -> stack[stackTop-2] = pop();
 
@@ -225,23 +794,96 @@ public class Interpreter {
                 case JUMP_IF_FALSE -> {int offset = (short) (((curBytes[frame.ip++] & 0xff) << 8) + (curBytes[frame.ip++] & 0xff)); if (isFalsy(peek())) frame.ip += offset;}
                 case JUMP_IF_TRUE -> {int offset = (short) (((curBytes[frame.ip++] & 0xff) << 8) + (curBytes[frame.ip++] & 0xff)); if (isTruthy(peek())) frame.ip += offset;}
 
-                case NEW_LIST -> push(new PetPetList());
+                case FOR_PREP -> {
+                    int slot = frame.fp+((((curBytes[frame.ip++] << 8) & 0xffff) | (curBytes[frame.ip++] & 0xff)) & 0xffff);
+                    int offset = (short) (((curBytes[frame.ip++] & 0xff) << 8) + (curBytes[frame.ip++] & 0xff));
+                    Object step = pop();
+                    Object limit = pop();
+                    Object start = pop();
+                    if (start instanceof Number s && limit instanceof Number l && step instanceof Number st) {
+                        if (st.doubleValue() == 0)
+                            runtimeException("For loop step cannot be 0");
+                        ForCounter counter = s instanceof Long && l instanceof Long && st instanceof Long ?
+                                new ForCounter(s.longValue(), l.longValue(), st.longValue()) :
+                                new ForCounter(s.doubleValue(), l.doubleValue(), st.doubleValue());
+                        stack[slot] = counter;
+                        pushNoCheck(null);
+                        if (!counter.inRange())
+                            frame.ip += offset;
+                    } else {
+                        runtimeException("For loop start, limit and step must be numbers, got " + getString(start) + ", " + getString(limit) + " and " + getString(step));
+                    }
+                }
+                case FOR_LOOP -> {
+                    ForCounter counter = (ForCounter) stack[frame.fp+((((curBytes[frame.ip++] << 8) & 0xffff) | (curBytes[frame.ip++] & 0xff)) & 0xffff)];
+                    int offset = (short) (((curBytes[frame.ip++] & 0xff) << 8) + (curBytes[frame.ip++] & 0xff));
+                    if (counter.step())
+                        frame.ip += offset;
+                }
+                case LOAD_FOR -> pushNoCheck(((ForCounter) stack[frame.fp+((((curBytes[frame.ip++] << 8) & 0xffff) | (curBytes[frame.ip++] & 0xff)) & 0xffff)]).value());
+
+                case NEW_LIST -> pushNoCheck(new PetPetList());
                 case LIST_ADD -> ((PetPetList) peek(1)).add(pop());
 
-                case NEW_TABLE -> push(new PetPetTable());
+                case NEW_TABLE -> pushNoCheck(new PetPetTable());
                 case TABLE_SET -> ((PetPetTable) peek(2)).put(pop(), pop()); //value was pushed, then key
 
                 case CALL -> {
                     int argCount = curBytes[frame.ip++] & 0xff;
-                    if (makeCall(peek(argCount), argCount, false, false)) {
+                    Object callee = peek(argCount);
+                    if (inlineThreshold > 0 && callee instanceof PetPetClosure closure)
+                        profileCall(frame, closure.function, frame.ip-2);
+                    if (makeCall(callee, argCount, false, false)) {
                         frame = peekCallStack();
-                        curBytes = frame.closure.function.chunk.bytes;
-                        constants = frame.closure.function.chunk.constants;
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
+                    }
+                }
+
+                case MATH_GUARD -> {
+                    int id = curBytes[frame.ip++] & 0xff;
+                    int offset = (short) (((curBytes[frame.ip++] & 0xff) << 8) + (curBytes[frame.ip++] & 0xff));
+                    JavaFunction builtin = MathLibrary.INTRINSICS[id];
+                    //Only if looking the function up would really find the builtin, so not if the table class's getters were changed either
+                    if (globals.get("math") instanceof PetPetTable<?, ?> math && math.getClass() == PetPetTable.class
+                            && getPetPetClass(math).indexing() == PetPetClass.TABLE_INDEXING && math.get(MathLibrary.INTRINSIC_NAMES[id]) == builtin) {
+                        pushNoCheck(builtin);
+                        frame.ip += offset;
+                    }
+                }
+                case MATH_CALL -> {
+                    int id = curBytes[frame.ip++] & 0xff;
+                    int argCount = curBytes[frame.ip++] & 0xff;
+                    Object callee = peek(argCount);
+                    if (callee == MathLibrary.INTRINSICS[id] && peek() instanceof Number last) {
+                        if (argCount == 1) {
+                            pop();
+                            stack[stackTop-1] = PetPetNumber.box(MathLibrary.computeIntrinsic(id, last.doubleValue(), 0));
+                            penalizeCost(1);
+                            break;
+                        } else if (peek(1) instanceof Number first) {
+                            pop();
+                            pop();
+                            stack[stackTop-1] = PetPetNumber.box(MathLibrary.computeIntrinsic(id, first.doubleValue(), last.doubleValue()));
+                            penalizeCost(2);
+                            break;
+                        }
+                    }
+                    //Not the builtin function, or not called with numbers, so do a regular call
+                    if (makeCall(callee, argCount, false, false)) {
+                        frame = peekCallStack();
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
                     }
                 }
 
                 case CLOSURE -> {
-                    PetPetClosure closure = new PetPetClosure((PetPetFunction) pop(), this);
+                    PetPetFunction function = (PetPetFunction) pop();
+                    if (function.numUpvalues == 0) {
+                        pushNoCheck(sharedClosure(function));
+                        break;
+                    }
+                    PetPetClosure closure = new PetPetClosure(function, this);
                     for (int i = 0; i < closure.upvalues.length; i++) {
                         boolean isLocal = curBytes[frame.ip++] > 0;
                         int index = curBytes[frame.ip++] & 0xff;
@@ -255,7 +897,12 @@ public class Interpreter {
                 }
 
                 case BIG_CLOSURE -> {
-                    PetPetClosure closure = new PetPetClosure((PetPetFunction) pop(), this);
+                    PetPetFunction function = (PetPetFunction) pop();
+                    if (function.numUpvalues == 0) {
+                        pushNoCheck(sharedClosure(function));
+                        break;
+                    }
+                    PetPetClosure closure = new PetPetClosure(function, this);
                     for (int i = 0; i < closure.upvalues.length; i++) {
                         boolean isLocal = curBytes[frame.ip++] > 0;
                         int index = (((curBytes[frame.ip++] << 8) & 0xffff) | (curBytes[frame.ip++] & 0xff)) & 0xffff; //Short read instead of byte, only difference
@@ -275,10 +922,12 @@ public class Interpreter {
                     frame.closure.upvalues[(((curBytes[frame.ip++] << 8) & 0xffff) | (curBytes[frame.ip++] & 0xff)) & 0xffff].set(peek());
                 }
                 case LOAD_UPVALUE -> {
-                    push(frame.closure.upvalues[curBytes[frame.ip++] & 0xff].get());
+                    Upvalue upvalue = frame.closure.upvalues[curBytes[frame.ip++] & 0xff];
+                    pushNoCheck(upvalue.idx < 0 ? upvalue.value : upvalue.interpreter.stack[upvalue.idx]);
                 }
                 case BIG_LOAD_UPVALUE -> {
-                    push(frame.closure.upvalues[(((curBytes[frame.ip++] << 8) & 0xffff) | (curBytes[frame.ip++] & 0xff)) & 0xffff].get());
+                    Upvalue upvalue = frame.closure.upvalues[(((curBytes[frame.ip++] << 8) & 0xffff) | (curBytes[frame.ip++] & 0xff)) & 0xffff];
+                    pushNoCheck(upvalue.idx < 0 ? upvalue.value : upvalue.interpreter.stack[upvalue.idx]);
                 }
                 case CLOSE_UPVALUE -> {
                     closeUpvalues(stackTop-2); //element on top of the stack is the result of the block expression
@@ -292,6 +941,25 @@ public class Interpreter {
                         runtimeException("Attempt to get from null value with key: " + getString(indexer));
 
                     PetPetClass langClass = getPetPetClass(instance);
+
+                    //Lists and tables whose classes still have the builtin methods are indexed directly,
+                    //with the same result and cost as calling those methods
+                    int indexing = langClass.indexing();
+                    if (indexing == PetPetClass.LIST_INDEXING && instance.getClass() == PetPetList.class && indexer instanceof Number n) {
+                        Object result = ((PetPetList<?>) instance).get(PetPetNumber.toInt(n));
+                        pop();
+                        stack[stackTop-1] = result;
+                        penalizeCost(2);
+                        break;
+                    }
+                    if (indexing == PetPetClass.TABLE_INDEXING && (instance.getClass() == PetPetTable.class || instance.getClass() == PetPetObject.class)) {
+                        Object result = ((PetPetTable<?, ?>) instance).get(indexer);
+                        pop();
+                        stack[stackTop-1] = result;
+                        penalizeCost(2);
+                        break;
+                    }
+
                     String indexerTypeName = getPetPetClass(indexer).name;
 
                     String specialString = "__get_" + indexerTypeName;
@@ -299,8 +967,8 @@ public class Interpreter {
                     if (getMethod != null) {
                         if (makeCall(getMethod, 2, false, true)) {
                             frame = peekCallStack();
-                            curBytes = frame.closure.function.chunk.bytes;
-                            constants = frame.closure.function.chunk.constants;
+                            curBytes = frame.chunk.bytes;
+                            constants = frame.chunk.constants;
                         }
                         break;
                     }
@@ -308,8 +976,8 @@ public class Interpreter {
                     if (getMethod != null) {
                         if (makeCall(getMethod, 2, false, true)) {
                             frame = peekCallStack();
-                            curBytes = frame.closure.function.chunk.bytes;
-                            constants = frame.closure.function.chunk.constants;
+                            curBytes = frame.chunk.bytes;
+                            constants = frame.chunk.constants;
                         }
                         break;
                     }
@@ -324,6 +992,29 @@ public class Interpreter {
 
                     PetPetClass langClass = getPetPetClass(instance);
 
+                    //Same as in GET
+                    int indexing = langClass.indexing();
+                    if (indexing == PetPetClass.LIST_INDEXING && instance.getClass() == PetPetList.class && indexer instanceof Number n) {
+                        try {
+                            PetPetList.ofObjects((PetPetList<?>) instance).set(PetPetNumber.toInt(n), value);
+                        } catch (PetPetException e) {
+                            runtimeException(e.getMessage());
+                        }
+                        pop();
+                        pop();
+                        stack[stackTop-1] = value;
+                        penalizeCost(3);
+                        break;
+                    }
+                    if (indexing == PetPetClass.TABLE_INDEXING && (instance.getClass() == PetPetTable.class || instance.getClass() == PetPetObject.class)) {
+                        PetPetTable.ofObjects((PetPetTable<?, ?>) instance).put(indexer, value);
+                        pop();
+                        pop();
+                        stack[stackTop-1] = value;
+                        penalizeCost(3);
+                        break;
+                    }
+
                     String indexerTypeName = getPetPetClass(indexer).name;
 
                     String specialString = "__set_" + indexerTypeName;
@@ -331,8 +1022,8 @@ public class Interpreter {
                     if (setMethod != null) {
                         if (makeCall(setMethod, 3, false, true)) {
                             frame = peekCallStack();
-                            curBytes = frame.closure.function.chunk.bytes;
-                            constants = frame.closure.function.chunk.constants;
+                            curBytes = frame.chunk.bytes;
+                            constants = frame.chunk.constants;
                         }
                         break;
                     }
@@ -340,8 +1031,8 @@ public class Interpreter {
                     if (setMethod != null) {
                         if (makeCall(setMethod, 3, false, true)) {
                             frame = peekCallStack();
-                            curBytes = frame.closure.function.chunk.bytes;
-                            constants = frame.closure.function.chunk.constants;
+                            curBytes = frame.chunk.bytes;
+                            constants = frame.chunk.constants;
                         }
                         break;
                     }
@@ -356,19 +1047,69 @@ public class Interpreter {
 
                     if (doInvoke(argCount, instance, indexer)) {
                         frame = peekCallStack();
-                        curBytes = frame.closure.function.chunk.bytes;
-                        constants = frame.closure.function.chunk.constants;
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
+                    }
+                }
+
+                case INLINE_GUARD -> {
+                    PetPetFunction inlined = (PetPetFunction) constants[(((curBytes[frame.ip++] << 8) & 0xffff) | (curBytes[frame.ip++] & 0xff)) & 0xffff];
+                    int argCount = curBytes[frame.ip++] & 0xff;
+                    int offset = (short) (((curBytes[frame.ip++] & 0xff) << 8) + (curBytes[frame.ip++] & 0xff));
+                    //Anything else gets called by the CALL after the inlined body
+                    if (!(stack[stackTop-argCount-1] instanceof PetPetClosure closure && closure.function == inlined))
+                        frame.ip += offset;
+                }
+                case INLINE_RETURN -> {
+                    int drop = (((curBytes[frame.ip++] << 8) & 0xffff) | (curBytes[frame.ip++] & 0xff)) & 0xffff;
+                    int offset = (short) (((curBytes[frame.ip++] & 0xff) << 8) + (curBytes[frame.ip++] & 0xff));
+                    int newTop = stackTop - drop;
+                    stack[newTop-1] = stack[stackTop-1];
+                    Arrays.fill(stack, newTop, stackTop, null);
+                    stackTop = newTop;
+                    frame.ip += offset;
+                }
+
+                case TAIL_CALL -> {
+                    int argCount = curBytes[frame.ip++] & 0xff;
+                    Object callee = peek(argCount);
+                    if (callee instanceof PetPetClosure closure && !closure.function.isGenerator && closure.paramCount == argCount) {
+                        reuseFrame(frame, closure, argCount+1);
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
+                    } else if (makeCall(callee, argCount, false, false)) { //errors and java functions go the usual way
+                        frame = peekCallStack();
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
+                    }
+                }
+
+                case TAIL_INVOKE -> {
+                    int argCount = curBytes[frame.ip++] & 0xff;
+                    Object method = findMethod(argCount, peek(argCount+1), peek(argCount));
+                    if (method instanceof PetPetClosure closure && !closure.function.isGenerator && closure.paramCount == argCount) {
+                        reuseFrame(frame, closure, argCount+1); //the instance is in the callee's spot
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
+                    } else if (makeCall(method, argCount+1, false, true)) {
+                        frame = peekCallStack();
+                        curBytes = frame.chunk.bytes;
+                        constants = frame.chunk.constants;
                     }
                 }
             }
         }
     }
 
-    private void penalizeCost(long count) {
+    /**
+     * Adds to the cost, running onHitMaxCost if that takes it over the max.
+     */
+    public void penalizeCost(long count) {
         cost += count;
         if (cost > maxCost) {
             onHitMaxCost.run();
             cost = 0;
+            updateCostLimit();
         }
     }
 
@@ -376,7 +1117,29 @@ public class Interpreter {
         if (cost++ > maxCost) {
             onHitMaxCost.run();
             cost = 0;
+            updateCostLimit();
+        }
+    }
+
+    //The slice only counts while it's the sliced call running, and not some java function it called.
+    //The cost is checked after adding one for the instruction, so the slice ends one earlier than sliceEnd.
+    private void updateCostLimit() {
+        if (runDepth != sliceDepth)
+            costLimit = maxCost;
+        else
+            costLimit = Math.min(maxCost, sliceEnd == Long.MIN_VALUE ? sliceEnd : sliceEnd - 1);
+    }
+
+    //Called by the run loop once the cost passes costLimit, after adding one for the next instruction.
+    //Runs onHitMaxCost if it was maxCost that got passed, and returns whether the sliced call should
+    //suspend instead. If neither, costLimit was just out of date.
+    private boolean costLimitHit() {
+        if (cost - 1 > maxCost) {
+            onHitMaxCost.run();
+            cost = 0;
         }
+        updateCostLimit();
+        return cost > sliceEnd && runDepth == sliceDepth;
     }
 
     private boolean callMetaBinary(Object l, Object r, String name) {
@@ -413,6 +1176,18 @@ public class Interpreter {
         return null;
     }
 
+    //The bitwise operators also work on doubles with integer values, and otherwise go to metamethods
+    private boolean callBitwise(Object l, Object r, String name) {
+        if (l instanceof Number nl && r instanceof Number nr) {
+            Object result = PetPetNumber.arith(name, nl, nr);
+            if (result == null)
+                runtimeException("Cannot " + name + " numbers without integer values, got " + getString(l) + " and " + getString(r));
+            pushNoCheck(result);
+            return false;
+        }
+        return callMetaBinary(l, r, name);
+    }
+
     private boolean callMetaUnary(Object o, String name) {
         //Called after popping 1 arg, so we have 1 arg of space on the stack, can pushNoCheck
         PetPetClass objClass = getPetPetClass(o);
@@ -436,31 +1211,92 @@ public class Interpreter {
      * return true if it was a petpet function
      */
     private boolean doInvoke(int argCount, Object instance, Object indexer) {
+        return makeCall(findMethod(argCount, instance, indexer), argCount+1, false, true);
+    }
+
+    //Takes the indexer out from under the args, and looks up the method it names
+    private Object findMethod(int argCount, Object instance, Object indexer) {
         System.arraycopy(stack, stackTop-argCount, stack, (stackTop--)-argCount-1, argCount);
+        stack[stackTop] = null;
         if (instance == null)
             runtimeException("Attempt to invoke method on null value (key = " + indexer + ")");
         PetPetClass langClass = getPetPetClass(instance);
         if (indexer instanceof String name) {
             //First try with _argCount
             Object method = langClass.getMethod(name + "_" + argCount);
-            if (method != null) {
-                return makeCall(method, argCount+1, false, true);
-            }
+            if (method != null)
+                return method;
             //If there wasn't one with the given arg count, then just do it with the regular one
             method = langClass.getMethod(name);
             if (method == null)
                 runtimeException("Method " + name + " does not exist for type " + langClass.name + " with " + argCount + " args");
-            return makeCall(method, argCount+1, false, true);
+            return method;
         }
         runtimeException("Attempt to invoke " + instance + " with non-string method name, " + indexer);
-        return false; //doesnt matter
+        return null; //doesnt matter
+    }
+
+    //Counts how many times in a row the CALL at this offset has gone to the same function. Once
+    //that's inlineThreshold times, the function of the frame inlines it there for later calls.
+    private void profileCall(CallFrame frame, PetPetFunction target, int site) {
+        CallProfile profile = frame.profile;
+        if (profile == null || profile.chunk != frame.chunk) {
+            if (callProfiles.size() >= MAX_CALL_PROFILES)
+                callProfiles.clear();
+            profile = frame.profile = callProfiles.computeIfAbsent(frame.chunk, CallProfile::new);
+        }
+        int i = Arrays.binarySearch(profile.sites, site);
+        int count = profile.counts[i];
+        if (count < 0)
+            return; //already inlined or tried to
+        if (profile.targets[i] != target) {
+            profile.targets[i] = target;
+            profile.counts[i] = 1;
+        } else if (++count >= inlineThreshold) {
+            profile.counts[i] = -1;
+            frame.closure.function.inlineAt(frame.chunk, site, target);
+        } else {
+            profile.counts[i] = count;
+        }
+    }
+
+    //How many times in a row each CALL in a chunk has gone to the same function, and which one, for
+    //this interpreter. Each chunk's profile is made the first time one of its calls is profiled.
+    private static final class CallProfile {
+        private final Chunk chunk;
+        private final int[] sites;
+        private final int[] counts;
+        private final PetPetFunction[] targets;
+
+        private CallProfile(Chunk chunk) {
+            this.chunk = chunk;
+            sites = chunk.callSites();
+            counts = new int[sites.length];
+            targets = new PetPetFunction[sites.length];
+        }
+    }
+
+    //For tail calls. Moves the callee (or instance) and args on top of the stack down to the
+    //start of the current frame, and runs the closure there, so the stack doesn't grow.
+    private void reuseFrame(CallFrame frame, PetPetClosure closure, int windowSize) {
+        closeUpvalues(frame.fp);
+        Chunk chunk = closure.function.entryChunk();
+        ensureStack(frame.fp + windowSize + chunk.maxStackSize);
+        int newTop = frame.fp + windowSize;
+        System.arraycopy(stack, stackTop-windowSize, stack, frame.fp, windowSize);
+        Arrays.fill(stack, newTop, stackTop, null);
+        stackTop = newTop;
+        frame.closure = closure;
+        frame.chunk = chunk;
+        frame.ip = 0;
+        frame.tailCalls++;
     }
 
     /**
      * Gets the string of the object, calling its metamethod if it exists
      */
     public String getString(Object o) {
-        if (o instanceof String || o instanceof Double || o instanceof Boolean || o == null)
+        if (o instanceof String || o instanceof Double || o instanceof Long || o instanceof Boolean || o == null)
             return PetPetString.valueOf(o);
         Object method = getPetPetClass(o).getMethod("__tostring");
         if (method != null) {
@@ -478,22 +1314,90 @@ public class Interpreter {
             return PetPetNull.PET_PET_CLASS;
         if (o instanceof PetPetObject obj)
             return obj.clazz;
-        return classMap.computeIfAbsent(o.getClass(), c -> {
-            Class<?> cur = c.getSuperclass();
-            while (cur != null) {
-                if (classMap.containsKey(cur)) {
-                    classMap.put(c, classMap.get(cur));
-                    return classMap.get(cur);
-                }
-                cur = cur.getSuperclass();
-            }
-            runtimeException("Environment error: java object of type " + o.getClass() + " is in the environment, but it has no PetPetClass associated.");
-            return null; //never happens, runtimeException() errors, but need anyway
-        });
+        Class<?> c = o.getClass();
+        PetPetClass result;
+        if (c == Double.class)
+            result = doubleClass;
+        else if (c == Long.class)
+            result = longClass;
+        else if (c == String.class)
+            result = stringClass;
+        else if (c == Boolean.class)
+            result = booleanClass;
+        else if (c == PetPetList.class)
+            result = listClass;
+        else if (c == PetPetTable.class)
+            result = tableClass;
+        else {
+            int slot = CLASS_SLOTS.get(c);
+            result = slot < classSlots.length ? classSlots[slot] : null;
+        }
+        return result != null ? result : lookUpPetPetClass(c);
+    }
+
+    //Finds the class in the class map, or the nearest superclass that's there, and caches it for getPetPetClass()
+    private PetPetClass lookUpPetPetClass(Class<?> c) {
+        Class<?> cur = c;
+        PetPetClass result = null;
+        while (cur != null && (result = classMap.get(cur)) == null)
+            cur = cur.getSuperclass();
+        if (result == null)
+            runtimeException("Environment error: java object of type " + c + " is in the environment, but it has no PetPetClass associated.");
+
+        if (c == Double.class) doubleClass = result;
+        else if (c == Long.class) longClass = result;
+        else if (c == String.class) stringClass = result;
+        else if (c == Boolean.class) booleanClass = result;
+        else if (c == PetPetList.class) listClass = result;
+        else if (c == PetPetTable.class) tableClass = result;
+        else {
+            int slot = CLASS_SLOTS.get(c);
+            if (slot >= classSlots.length)
+                classSlots = Arrays.copyOf(classSlots, Math.max(slot + 1, classSlots.length * 2));
+            classSlots[slot] = result;
+        }
+        return result;
+    }
+
+    private void clearClassCaches() {
+        doubleClass = longClass = stringClass = booleanClass = listClass = tableClass = null;
+        Arrays.fill(classSlots, null);
+    }
+
+    /**
+     * The class map, which forgets what getPetPetClass() has cached whenever a class
+     * is registered or removed. Changing it through its entries or iterators skips that.
+     */
+    private final class ClassMap extends IdentityHashMap<Class<?>, PetPetClass> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public PetPetClass put(Class<?> key, PetPetClass value) {
+            clearClassCaches();
+            return super.put(key, value);
+        }
+
+        @Override
+        public void putAll(Map<? extends Class<?>, ? extends PetPetClass> m) {
+            clearClassCaches();
+            super.putAll(m);
+        }
+
+        @Override
+        public PetPetClass remove(Object key) {
+            clearClassCaches();
+            return super.remove(key);
+        }
+
+        @Override
+        public void clear() {
+            clearClassCaches();
+            super.clear();
+        }
     }
 
     public boolean isFalsy(Object o) {
-        return o == Boolean.FALSE || o == null || (o instanceof Double d && d == 0);
+        return o == Boolean.FALSE || o == null || (o instanceof Double d && d == 0) || (o instanceof Long l && l == 0);
     }
 
     public boolean isTruthy(Object o) {
@@ -505,17 +1409,26 @@ public class Interpreter {
      * there must be space already allocated, so no need to
      * check for fullness
      */
+    //Grows the stack until it can hold size values, plus the 1 extra that pop() relies on
+    private void ensureStack(int size) {
+        if (size < stack.length - 1)
+            return;
+        int newLength = stack.length * 2;
+        while (size >= newLength - 1)
+            newLength *= 2;
+        Object[] newStack = new Object[newLength];
+        System.arraycopy(stack, 0, newStack, 0, stackTop);
+        stack = newStack;
+    }
+
     private void pushNoCheck(Object o) {
         stack[stackTop++] = o;
 //        printStack();
     }
 
     private void push(Object o) {
-        if (stackTop >= stack.length - 1) { //expand 1 earlier so pop() never needs to check
-            Object[] newStack = new Object[stackTop * 2];
-            System.arraycopy(stack, 0, newStack, 0, stackTop);
-            stack = newStack;
-        }
+        if (stackTop >= stack.length - 1) //expand 1 earlier so pop() never needs to check
+            ensureStack(stackTop + 1);
         stack[stackTop++] = o;
 //        printStack();
     }
@@ -547,6 +1460,10 @@ public class Interpreter {
         stack[index] = value;
     }
 
+    public boolean isRunning() {
+        return callStackTop > 0;
+    }
+
     public CallFrame peekCallStack() {
         return callStack[callStackTop-1];
     }
@@ -556,6 +1473,10 @@ public class Interpreter {
     }
 
     public void pushCallStack(PetPetClosure closure, int ip, int fp, boolean calledFromJava) {
+        pushCallStack(closure, closure.function.entryChunk(), ip, fp, calledFromJava);
+    }
+
+    private void pushCallStack(PetPetClosure closure, Chunk chunk, int ip, int fp, boolean calledFromJava) {
         if (callStackTop == callStack.length) {
             CallFrame[] newStack = new CallFrame[callStackTop * 2];
             System.arraycopy(callStack, 0, newStack, 0, callStackTop);
@@ -563,11 +1484,17 @@ public class Interpreter {
                 newStack[i] = new CallFrame();
             callStack = newStack;
         }
+        //Make room for everything the function will push, so run() doesn't have to check
+        ensureStack(fp + closure.paramCount + 1 + chunk.maxStackSize);
         CallFrame frame = callStack[callStackTop++];
         frame.closure = closure;
+        frame.chunk = chunk;
         frame.ip = ip;
         frame.fp = fp;
         frame.wasJavaCall = calledFromJava;
+        frame.generator = null;
+        frame.intrinsic = null;
+        frame.tailCalls = 0;
     }
 
     //Returns true if this was a petpet function, false if a java function
@@ -594,6 +1521,17 @@ public class Interpreter {
             runtimeException("Attempt to call null value");
         if (callee instanceof PetPetClosure closure) {
             int diff = isInvocation ? 1 : 0;
+            if (closure.function.isGenerator) {
+                if (argCount != closure.function.paramCount + diff)
+                    runtimeException(String.format("Expected %d args, got %d", closure.function.paramCount, argCount - diff));
+                //Move the would-be frame into a generator, and leave that as the result
+                int base = stackTop-argCount-1+diff;
+                PetPetGenerator generator = new PetPetGenerator(this, closure, Arrays.copyOfRange(stack, base, stackTop));
+                while (stackTop > base)
+                    pop();
+                pushNoCheck(generator);
+                return false;
+            }
             pushCallStack(closure, 0, stackTop-argCount-1+diff, calledFromJava);
             if (callStackTop > maxStackFrames)
                 runtimeException("Stack overflow! More than the max stack frames of " + maxStackFrames);
@@ -606,6 +1544,11 @@ public class Interpreter {
                 int diff = isInvocation ? 1 : 0;
                 runtimeException(String.format("Expected %d args, got %d", jFunction.paramCount - diff, argCount - diff));
             }
+            if (jFunction.intrinsic != null && !calledFromJava) {
+                Intrinsic.Loop loop = startIntrinsic(jFunction, argCount, isInvocation);
+                if (loop != null)
+                    return continueIntrinsic(loop);
+            }
             try {
                 if (jFunction.costPenalizer != null)
                     penalizeCost(jFunction.costPenalizer.applyAsInt(this));
@@ -652,16 +1595,30 @@ public class Interpreter {
                     };
                 }
 
-                if (result instanceof Number n)
-                    result = n.doubleValue();
+                if (jFunction.isAsync && result instanceof CompletableFuture<?> future) {
+                    if (!future.isDone() && runDepth == sliceDepth) {
+                        //Park the sliced call at the next instruction, and leave a placeholder for the result
+                        sliceContinuation.pendingFuture = future;
+                        sliceEnd = Long.MIN_VALUE;
+                        result = null;
+                    } else {
+                        //Not inside something that can be parked, so just wait for it
+                        result = future.join();
+                    }
+                }
+                result = PetPetNumber.normalize(result);
                 int numToPop = isInvocation ? argCount : argCount + 1;
                 for (int i = 0; i < numToPop; i++)
                     pop();
                 penalizeCost(argCount);
                 push(result);
+                //The function might have changed maxCost, parked the call, or ended a nested sliced call
+                updateCostLimit();
             } catch (PetPetException e) {
 //                e.printStackTrace();
                 runtimeException(e.getMessage());
+            } catch (CompletionException | CancellationException e) {
+                javaFailure(e.getCause() != null ? e.getCause() : e);
             } catch (NullPointerException e) {
                 runtimeException("Unexpected null value");
             } catch (ClassCastException e) {
@@ -729,46 +1686,128 @@ public class Interpreter {
         return false;
     }
 
-    private Upvalue captureUpvalue(int index) {
-        incCost(); //cost for capturing an upvalue
-        //Search if an open upvalue already exists for this local
-        Upvalue prev = null;
-        Upvalue cur = upvalueList;
+    //Starts the java function's intrinsic loop in place of invoking it, replacing its args with a placeholder.
+    //Returns null, leaving the stack alone, if the intrinsic doesn't apply.
+    private Intrinsic.Loop startIntrinsic(JavaFunction jFunction, int argCount, boolean isInvocation) {
+        Intrinsic intrinsic = jFunction.intrinsic;
+        if (!(peek(argCount-1-intrinsic.funcIndex) instanceof PetPetClosure closure) || closure.function.isGenerator || closure.interpreter != this)
+            return null;
+        if (closure.paramCount != intrinsic.funcParams)
+            runtimeException(intrinsic.name + "() expects " + intrinsic.funcParams + "-arg function, got " + closure.paramCount + "-arg");
+        Object[] args = new Object[argCount];
+        for (int i = 0; i < argCount; i++)
+            args[i] = peek(argCount-1-i);
+        Intrinsic.Loop loop = intrinsic.start(args);
+        if (loop == null)
+            return null;
+        loop.func = closure;
+        if (jFunction.costPenalizer != null)
+            penalizeCost(jFunction.costPenalizer.applyAsInt(this));
+        int numToPop = isInvocation ? argCount : argCount + 1;
+        for (int i = 0; i < numToPop; i++)
+            pop();
+        penalizeCost(argCount);
+        //Placeholder for the result. Returning closes upvalues from fp-1 up, so the
+        //frames of the calls can't sit right on top of the caller's locals.
+        push(null);
+        return loop;
+    }
 
-        while (cur != null && cur.idx > index) {
-            prev = cur;
-            cur = cur.next;
+    //Pushes a frame for the intrinsic's next call to its function, or puts its result in place if it's done.
+    //Returns true if a frame was pushed.
+    private boolean continueIntrinsic(Intrinsic.Loop loop) {
+        boolean more = false;
+        try {
+            more = loop.next();
+        } catch (PetPetException e) {
+            runtimeException(e.getMessage());
+        } catch (RuntimeException e) {
+            runtimeException("Java exception occurred: " + e.getMessage());
         }
-        if (cur != null && cur.idx == index)
-            return cur;
+        if (!more) {
+            stack[stackTop-1] = loop.result();
+            return false;
+        }
+        Object[] callArgs = loop.callArgs;
+        push(loop.func);
+        for (Object arg : callArgs)
+            push(PetPetNumber.normalize(arg));
+        pushCallStack(loop.func, 0, stackTop-callArgs.length-1, false);
+        peekCallStack().intrinsic = loop;
+        if (callStackTop > maxStackFrames)
+            runtimeException("Stack overflow! More than the max stack frames of " + maxStackFrames);
+        return true;
+    }
 
-        Upvalue result = new Upvalue(this, index);
+    //Reports an exception from an async java function as a script error
+    private void javaFailure(Throwable t) {
+        if (t instanceof PetPetException)
+            runtimeException(t.getMessage());
+        runtimeException("Java exception occurred: " + t.getMessage());
+    }
 
-        result.next = cur;
-        if (prev == null) {
-            upvalueList = result;
-        } else {
-            prev.next = result;
+    //Functions that capture nothing get one closure per interpreter, made the first time and reused after.
+    //They're kept here rather than on the function, since functions are shared between interpreters.
+    private PetPetClosure sharedClosure(PetPetFunction function) {
+        PetPetClosure closure = sharedClosures.get(function);
+        if (closure == null)
+            sharedClosures.put(function, closure = new PetPetClosure(function, this));
+        return closure;
+    }
+
+    private Upvalue captureUpvalue(int index) {
+        incCost(); //cost for capturing an upvalue
+        //Reuse the open upvalue for this local if there already is one
+        if (index >= openUpvalues.length)
+            openUpvalues = Arrays.copyOf(openUpvalues, Math.max(stack.length, index + 1));
+        Upvalue result = openUpvalues[index];
+        if (result == null) {
+            result = new Upvalue(this, index);
+            openUpvalues[index] = result;
+            if (index >= openUpvalueTop)
+                openUpvalueTop = index + 1;
         }
         return result;
     }
 
     //Closes upvalues at or above the given stack index
     private void closeUpvalues(int index) {
-        while (upvalueList != null && upvalueList.idx >= index) {
-            upvalueList.close();
-            upvalueList = upvalueList.next;
+        if (index < 0)
+            index = 0;
+        for (int i = openUpvalueTop - 1; i >= index; i--) {
+            Upvalue upvalue = openUpvalues[i];
+            if (upvalue != null) {
+                upvalue.close();
+                openUpvalues[i] = null;
+            }
         }
+        if (index < openUpvalueTop)
+            openUpvalueTop = index;
     }
 
     private void runtimeException(String message) {
         StringBuilder messageBuilder = new StringBuilder(message);
         for (int i = callStackTop - 1; i >= 0; i--) {
             CallFrame frame = callStack[i];
+            //Functions inlined into the frame's chunk show up as frames of their own, innermost first
+            List<Chunk.InlinedCall> inlinedCalls = frame.chunk.inlinedCalls;
+            for (int j = inlinedCalls.size() - 1; j >= 0; j--) {
+                Chunk.InlinedCall inlined = inlinedCalls.get(j);
+                if (inlined.contains(frame.ip))
+                    messageBuilder.append("\n at: line ")
+                            .append(inlined.lineNumber(frame.ip))
+                            .append(" inside ")
+                            .append(inlined.function().name);
+            }
             messageBuilder.append("\n at: line ")
                     .append(frame.lineNumber())
                     .append(" inside ")
                     .append(frame.closure.function.name);
+            if (frame.tailCalls > 0)
+                messageBuilder.append("\n ... ")
+                        .append(frame.tailCalls)
+                        .append(frame.tailCalls == 1 ? " frame" : " frames")
+                        .append(" elided by tail calls");
         }
         callStackTop = 0;
         throw new PetPetException(messageBuilder.toString());
@@ -784,11 +1823,77 @@ public class Interpreter {
         System.out.println("]");
     }
 
+    /**
+     * The counter of a numeric for loop, which sits in the loop variable's stack slot.
+     * It's stepped in place, so a number is only boxed when the loop variable is read.
+     * The value is recomputed from the start each step, so fractional steps don't drift.
+     * When the start, limit and step are all integers, it counts in longs instead.
+     */
+    private static final class ForCounter {
+        private final double start, limit, step;
+        private long count;
+        private double value;
+
+        private final boolean integer;
+        private final long longLimit, longStep;
+        private long longValue;
+
+        private ForCounter(double start, double limit, double step) {
+            this.start = start;
+            this.limit = limit;
+            this.step = step;
+            this.value = start;
+            integer = false;
+            longLimit = longStep = 0;
+        }
+
+        private ForCounter(long start, long limit, long step) {
+            this.start = this.limit = this.step = 0;
+            integer = true;
+            longValue = start;
+            longLimit = limit;
+            longStep = step;
+        }
+
+        private Object value() {
+            return integer ? (Object) PetPetNumber.box(longValue) : (Object) PetPetNumber.box(value);
+        }
+
+        private boolean inRange() {
+            if (integer)
+                return longStep > 0 ? longValue < longLimit : longValue > longLimit;
+            return step > 0 ? value < limit : value > limit;
+        }
+
+        //Moves to the next value, returning whether the loop carries on
+        private boolean step() {
+            if (integer) {
+                long next = longValue + longStep;
+                if (((longValue ^ next) & (longStep ^ next)) < 0)
+                    return false; //went past the end of the longs, so it's past the limit too
+                longValue = next;
+            } else {
+                value = start + step * ++count;
+            }
+            return inRange();
+        }
+
+        @Override
+        public String toString() {
+            return "for counter (" + value() + ")";
+        }
+    }
+
     private static class CallFrame {
         private PetPetClosure closure;
+        private Chunk chunk; //the closure's function's entry chunk, as of when the frame started
         private int ip; //instruction pointer
         private int fp; //frame pointer
         private boolean wasJavaCall; //whether this function was called from java itself, or inside the function
+        private PetPetGenerator generator; //non-null if this is the frame of a generator
+        private Intrinsic.Loop intrinsic; //non-null if this frame was called by an intrinsic loop, which gets its result
+        private int tailCalls; //how many times this frame was reused by a tail call, for stack traces
+        private CallProfile profile; //the profile of the chunk, as of the last profiled call, see profileCall()
 
         public CallFrame() {
             //defaults
@@ -808,7 +1913,7 @@ public class Interpreter {
 //        }
 
         public int lineNumber() {
-            int[] lines = closure.function.lineNumberTable;
+            int[] lines = chunk.lineNumberTable != null ? chunk.lineNumberTable : closure.function.lineNumberTable;
             int index = 0;
             while (index < lines.length && lines[index] < ip) index++;
             return index;
@@ -0,0 +1,56 @@
+package petpet.lang.run;
+
+import java.util.function.Function;
+
+/**
+ * Lets the interpreter run a java function that calls a script function over and over,
+ * like list.map(), inside its own dispatch loop. When a script calls a JavaFunction
+ * with an intrinsic, passing a script closure as the function, the interpreter starts
+ * a Loop instead of invoking the java method. Each call to the closure is then an
+ * ordinary frame, and its result is handed to the loop when the frame returns, so
+ * no element goes through PetPetClosure.call() and back into Interpreter.run().
+ */
+public final class Intrinsic {
+    final String name; //For error messages, like "list.map"
+    final int funcIndex; //Which arg is the function, where the instance is arg 0
+    final int funcParams;
+    private final Function<Object[], Loop> starter;
+
+    /**
+     * The starter is given the args of the java function, instance first. It may
+     * return null if the intrinsic doesn't apply to them, in which case the java
+     * function is called as usual.
+     */
+    public Intrinsic(String name, int funcIndex, int funcParams, Function<Object[], Loop> starter) {
+        this.name = name;
+        this.funcIndex = funcIndex;
+        this.funcParams = funcParams;
+        this.starter = starter;
+    }
+
+    Loop start(Object[] args) {
+        return starter.apply(args);
+    }
+
+    /**
+     * The state of one run of an intrinsic. Throwing a PetPetException from
+     * any of these methods reports it as an error in the script.
+     */
+    public abstract static class Loop {
+        protected final Object[] callArgs;
+        PetPetClosure func; //Set by the interpreter once started
+
+        protected Loop(int funcParams) {
+            callArgs = new Object[funcParams];
+        }
+
+        //Fills in callArgs for the next call, or returns false if the loop is done
+        protected abstract boolean next();
+
+        //Receives the result of the last call
+        protected abstract void accept(Object result);
+
+        //What the java function would have returned, once next() returns false
+        protected abstract Object result();
+    }
+}
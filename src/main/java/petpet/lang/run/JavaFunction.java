@@ -1,6 +1,7 @@
 package petpet.lang.run;
 
 import petpet.external.PetPetWhitelist;
+import petpet.types.PetPetNumber;
 
 import java.lang.invoke.LambdaMetafactory;
 import java.lang.invoke.MethodHandle;
@@ -18,8 +19,8 @@ public class JavaFunction extends PetPetCallable {
     public final int paramCount;
     private final Backing backing;
 
-    //0, 1, 2, ...
-    //double, float, long, int, short, byte
+    //0 for no conversion, then 1, 2, ...
+    //float, long, int, short, byte, double
     private boolean needsNumberConversion;
     private byte[] requiredTypes;
 
@@ -30,6 +31,14 @@ public class JavaFunction extends PetPetCallable {
     //add a cost penalizer on top of them later.
     public ToIntFunction<Interpreter> costPenalizer;
 
+    //If true, this function returns a CompletableFuture, and the script sees the
+    //future's result instead. See async().
+    public boolean isAsync;
+
+    //If non-null, and a script calls this with a script function, the interpreter runs
+    //this loop itself instead of invoking the java method. See Intrinsic.
+    public Intrinsic intrinsic;
+
     public JavaFunction(boolean isVoid, int paramCount, ToIntFunction<Interpreter> costPenalizer) {
         this.isVoid = isVoid;
         this.paramCount = paramCount;
@@ -117,19 +126,30 @@ public class JavaFunction extends PetPetCallable {
         for (int i = 0; i < paramTypes.length; i++) {
             Class<?> param = paramTypes[i];
             if (Number.class.isAssignableFrom(param)) {
-                if (param != Double.class) {
-                    needsNumberConversion = true;
-                    if (param == Float.class) req[i] = 1;
-                    else if (param == Long.class) req[i] = 2;
-                    else if (param == Integer.class) req[i] = 3;
-                    else if (param == Short.class) req[i] = 4;
-                    else if (param == Byte.class) req[i] = 5;
-                }
+                needsNumberConversion = true;
+                if (param == Float.class) req[i] = 1;
+                else if (param == Long.class) req[i] = 2;
+                else if (param == Integer.class) req[i] = 3;
+                else if (param == Short.class) req[i] = 4;
+                else if (param == Byte.class) req[i] = 5;
+                else if (param == Double.class) req[i] = 6; //integers are Longs, so doubles need converting too
             }
         }
         requiredTypes = needsNumberConversion ? req : null;
     }
 
+    /**
+     * Marks this function as async: its invoke() returns a CompletableFuture,
+     * and scripts calling it get the future's result. When the script was
+     * started with PetPetClosure.callAsync() (or callSliced()), it's parked
+     * until the future completes, without holding up a thread. Otherwise,
+     * the calling thread waits for the future.
+     */
+    public JavaFunction async() {
+        isAsync = true;
+        return this;
+    }
+
     public boolean needsNumberConversion() {
         return needsNumberConversion;
     }
@@ -139,9 +159,10 @@ public class JavaFunction extends PetPetCallable {
             case 0 -> o;
             case 1 -> ((Number) o).floatValue();
             case 2 -> ((Number) o).longValue();
-            case 3 -> ((Number) o).intValue();
-            case 4 -> ((Number) o).shortValue();
-            case 5 -> ((Number) o).byteValue();
+            case 3 -> PetPetNumber.toInt((Number) o);
+            case 4 -> (short) PetPetNumber.toInt((Number) o);
+            case 5 -> (byte) PetPetNumber.toInt((Number) o);
+            case 6 -> ((Number) o).doubleValue();
             default -> throw new IllegalArgumentException("Shouldn't ever happen, bug in interpreter number casting");
         };
     }
@@ -8,11 +8,16 @@ import petpet.types.immutable.PetPetTableView;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 
 @PetPetWhitelist
@@ -55,7 +60,15 @@ public class PetPetClass {
 
     //method object is JavaFunction or LangClosure
     //currently only JavaFunction, since user-defined classes aren't a thing yet
-    public final PetPetTable<String, PetPetCallable> methods = new PetPetTable<>();
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public final PetPetTable<String, PetPetCallable> methods = (PetPetTable) new MethodTable();
+
+    //Bumped whenever a method is added, replaced or removed, or the parent is set with setParent()
+    int version;
+
+    //What GET and SET on instances of this class do, see indexing(), and the version it was worked out for
+    static final int CUSTOM_INDEXING = 0, LIST_INDEXING = 1, TABLE_INDEXING = 2;
+    private int indexing, indexingVersion = -1;
 //    public final PetPetTable<String, Function> fieldGetters = new PetPetTable<>();
 //    public final PetPetTable<String, BiConsumer> fieldSetters = new PetPetTable<>();
 
@@ -66,6 +79,34 @@ public class PetPetClass {
         return result;
     }
 
+    /**
+     * Whether GET and SET on instances of this class still go to the builtin list or table
+     * methods, in which case the interpreter can index lists and tables directly. It's
+     * worked out again only after the methods change, so it's cheap to call each time.
+     */
+    int indexing() {
+        if (parent != null)
+            return CUSTOM_INDEXING; //its methods could change without this one's version changing
+        if (indexingVersion != version) {
+            indexing = computeIndexing();
+            indexingVersion = version;
+        }
+        return indexing;
+    }
+
+    private int computeIndexing() {
+        PetPetClass list = PetPetList.LIST_CLASS, table = PetPetTable.TABLE_CLASS;
+        if (methods.get("__get_num") == list.methods.get("__get_num") && methods.get("__set_num") == list.methods.get("__set_num"))
+            return LIST_INDEXING;
+        if (methods.get("__get") != table.methods.get("__get") || methods.get("__set") != table.methods.get("__set"))
+            return CUSTOM_INDEXING;
+        //Methods for specific key types would be used instead of __get and __set
+        for (String name : methods.keySet())
+            if (name.startsWith("__get_") || name.startsWith("__set_"))
+                return CUSTOM_INDEXING;
+        return TABLE_INDEXING;
+    }
+
     public boolean doesExtend(PetPetClass possibleParent) {
         PetPetClass cur = this;
         while (cur != null) {
@@ -108,11 +149,194 @@ public class PetPetClass {
         return this;
     }
 
+    public boolean isEditable() {
+        return isEditable;
+    }
+
     public PetPetClass setParent(PetPetClass parent) {
         this.parent = parent;
+        version++;
         return this;
     }
 
+    //The methods table, which bumps the class's version when it's changed. HashMap's own versions
+    //of most of these don't go through put() or remove(), so every way of changing it is overridden,
+    //including through its key, value and entry views.
+    private final class MethodTable extends PetPetTable<Object, Object> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Object put(Object key, Object value) {
+            version++;
+            return super.put(key, value);
+        }
+
+        @Override
+        public void putAll(Map<?, ?> m) {
+            version++;
+            super.putAll(m);
+        }
+
+        @Override
+        public Object putIfAbsent(Object key, Object value) {
+            version++;
+            return super.putIfAbsent(key, value);
+        }
+
+        @Override
+        public Object remove(Object key) {
+            version++;
+            return super.remove(key);
+        }
+
+        @Override
+        public boolean remove(Object key, Object value) {
+            version++;
+            return super.remove(key, value);
+        }
+
+        @Override
+        public Object replace(Object key, Object value) {
+            version++;
+            return super.replace(key, value);
+        }
+
+        @Override
+        public boolean replace(Object key, Object oldValue, Object newValue) {
+            version++;
+            return super.replace(key, oldValue, newValue);
+        }
+
+        @Override
+        public void replaceAll(BiFunction<? super Object, ? super Object, ?> function) {
+            version++;
+            super.replaceAll(function);
+        }
+
+        @Override
+        public Object computeIfAbsent(Object key, Function<? super Object, ?> mappingFunction) {
+            version++;
+            return super.computeIfAbsent(key, mappingFunction);
+        }
+
+        @Override
+        public Object computeIfPresent(Object key, BiFunction<? super Object, ? super Object, ?> remappingFunction) {
+            version++;
+            return super.computeIfPresent(key, remappingFunction);
+        }
+
+        @Override
+        public Object compute(Object key, BiFunction<? super Object, ? super Object, ?> remappingFunction) {
+            version++;
+            return super.compute(key, remappingFunction);
+        }
+
+        @Override
+        public Object merge(Object key, Object value, BiFunction<? super Object, ? super Object, ?> remappingFunction) {
+            version++;
+            return super.merge(key, value, remappingFunction);
+        }
+
+        @Override
+        public void clear() {
+            version++;
+            super.clear();
+        }
+
+        @Override
+        public Set<Object> keySet() {
+            return new VersionedSet<>(super.keySet());
+        }
+
+        @Override
+        public Collection<Object> values() {
+            return new VersionedCollection<>(super.values());
+        }
+
+        @Override
+        public Set<Map.Entry<Object, Object>> entrySet() {
+            return new VersionedSet<>(super.entrySet());
+        }
+    }
+
+    //A view of the methods table, which bumps the class's version when anything is removed through it.
+    //Removing always goes through the iterator, since AbstractCollection does everything with it.
+    private class VersionedCollection<E> extends AbstractCollection<E> {
+        final Collection<E> view;
+
+        VersionedCollection(Collection<E> view) {
+            this.view = view;
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            Iterator<E> iterator = view.iterator();
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public E next() {
+                    E next = iterator.next();
+                    //Entries can have their values set, too
+                    if (next instanceof Map.Entry<?, ?> entry)
+                        return castEntry(versionedEntry(entry));
+                    return next;
+                }
+
+                @Override
+                public void remove() {
+                    version++;
+                    iterator.remove();
+                }
+            };
+        }
+
+        @SuppressWarnings("unchecked") //only ever an entry of the same table
+        private E castEntry(Map.Entry<?, ?> entry) {
+            return (E) entry;
+        }
+
+        private <K, V> Map.Entry<K, V> versionedEntry(Map.Entry<K, V> entry) {
+            return new AbstractMap.SimpleEntry<>(entry) {
+                @Override
+                public V setValue(V value) {
+                    version++;
+                    super.setValue(value);
+                    return entry.setValue(value);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return view.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return view.contains(o);
+        }
+    }
+
+    private class VersionedSet<E> extends VersionedCollection<E> implements Set<E> {
+        VersionedSet(Set<E> view) {
+            super(view);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return view.equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return view.hashCode();
+        }
+    }
+
     @Override
     public String toString() {
         return "class[" + name + "]";
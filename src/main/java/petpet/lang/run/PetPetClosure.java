@@ -1,5 +1,13 @@
 package petpet.lang.run;
 
+import petpet.types.PetPetNumber;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
 public class PetPetClosure extends PetPetCallable {
     public final PetPetFunction function;
     public final Upvalue[] upvalues;
@@ -20,19 +28,173 @@ public class PetPetClosure extends PetPetCallable {
     }
 
     public Object call(Object... args) {
-        //Convert numbers to double
+        //Convert numbers to PetPet's
         for (int i = 0; i < args.length; i++)
-            if (args[i] instanceof Number n)
-                args[i] = n.doubleValue();
+            args[i] = PetPetNumber.normalize(args[i]);
         return interpreter.run(this, false, args);
     }
 
+    //Fixed arity versions of call(), which put the args straight on the interpreter's
+    //stack instead of making an array first. For a closure called over and over, see callSite().
+    public Object call0() {
+        interpreter.beginCall(this, 0);
+        return interpreter.finishCall(this, 0, false);
+    }
+
+    public Object call1(Object arg0) {
+        interpreter.beginCall(this, 1);
+        interpreter.pushArg(arg0);
+        return interpreter.finishCall(this, 1, false);
+    }
+
+    public Object call2(Object arg0, Object arg1) {
+        interpreter.beginCall(this, 2);
+        interpreter.pushArg(arg0);
+        interpreter.pushArg(arg1);
+        return interpreter.finishCall(this, 2, false);
+    }
+
+    public Object call3(Object arg0, Object arg1, Object arg2) {
+        interpreter.beginCall(this, 3);
+        interpreter.pushArg(arg0);
+        interpreter.pushArg(arg1);
+        interpreter.pushArg(arg2);
+        return interpreter.finishCall(this, 3, false);
+    }
+
+    public Object call4(Object arg0, Object arg1, Object arg2, Object arg3) {
+        interpreter.beginCall(this, 4);
+        interpreter.pushArg(arg0);
+        interpreter.pushArg(arg1);
+        interpreter.pushArg(arg2);
+        interpreter.pushArg(arg3);
+        return interpreter.finishCall(this, 4, false);
+    }
+
+    //Same as above, for numbers
+    public Object callD(double arg0) {
+        interpreter.beginCall(this, 1);
+        interpreter.pushArg(arg0);
+        return interpreter.finishCall(this, 1, false);
+    }
+
+    public Object callD(double arg0, double arg1) {
+        interpreter.beginCall(this, 2);
+        interpreter.pushArg(arg0);
+        interpreter.pushArg(arg1);
+        return interpreter.finishCall(this, 2, false);
+    }
+
+    public Object callD(double arg0, double arg1, double arg2) {
+        interpreter.beginCall(this, 3);
+        interpreter.pushArg(arg0);
+        interpreter.pushArg(arg1);
+        interpreter.pushArg(arg2);
+        return interpreter.finishCall(this, 3, false);
+    }
+
+    public Object callD(double arg0, double arg1, double arg2, double arg3) {
+        interpreter.beginCall(this, 4);
+        interpreter.pushArg(arg0);
+        interpreter.pushArg(arg1);
+        interpreter.pushArg(arg2);
+        interpreter.pushArg(arg3);
+        return interpreter.finishCall(this, 4, false);
+    }
+
+    /**
+     * A handle for calling this closure from java over and over, which
+     * checks it once up front instead of on every call. See CallSite.
+     */
+    public CallSite callSite() {
+        return new CallSite(this);
+    }
+
+    //For calling this closure over many sets of args at once, see Batch
+    public Batch batch() {
+        return new Batch(this);
+    }
+
+    /**
+     * Calls this closure, suspending it once it has used up the budget
+     * of cost. Keep resuming the returned continuation until it's done.
+     */
+    public Continuation callSliced(long budget, Object... args) {
+        //Convert numbers to PetPet's
+        for (int i = 0; i < args.length; i++)
+            args[i] = PetPetNumber.normalize(args[i]);
+        return interpreter.runSliced(this, budget, args);
+    }
+
+    /**
+     * Calls this closure, parking it instead of blocking whenever it waits on an
+     * async java function. See Interpreter.runAsync() for threading details.
+     */
+    public CompletableFuture<Object> callAsync(Object... args) {
+        //Convert numbers to PetPet's
+        for (int i = 0; i < args.length; i++)
+            args[i] = PetPetNumber.normalize(args[i]);
+        return interpreter.runAsync(this, args);
+    }
+
+    /**
+     * Whether calling this can only affect its arguments and the things it creates.
+     * That's when its function doesn't touch globals or assign to upvalues, and every
+     * upvalue it captured holds a number, string, boolean, null, or another pure
+     * closure. Pure closures can be called from several threads at once, each with
+     * its own fork of the interpreter, which is what list.pmap() and friends do.
+     */
+    public boolean isPure() {
+        return isPure(Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    private boolean isPure(Set<PetPetClosure> checking) {
+        if (!checking.add(this))
+            return true; //already being checked further up, for recursive functions
+        if (function.touchesSharedState())
+            return false;
+        for (Upvalue upvalue : upvalues) {
+            Object value = upvalue.get();
+            if (value == null || value instanceof Double || value instanceof Long || value instanceof String || value instanceof Boolean)
+                continue;
+            if (!(value instanceof PetPetClosure closure) || !closure.isPure(checking))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * A copy of this closure that runs on the given interpreter. Every upvalue is copied
+     * into a new closed one, so the copy never reads the old interpreter's stack, and
+     * closures it captured that run somewhere else are copied the same way, so nothing
+     * reached from the copy calls back into the old interpreter. Only meant for pure
+     * closures, since assigning to an upvalue of the copy doesn't change the original.
+     */
+    public PetPetClosure rebind(Interpreter other) {
+        return rebind(other, new IdentityHashMap<>());
+    }
+
+    private PetPetClosure rebind(Interpreter other, Map<PetPetClosure, PetPetClosure> rebound) {
+        PetPetClosure result = new PetPetClosure(function, other);
+        rebound.put(this, result); //before the upvalues, for recursive functions
+        for (int i = 0; i < upvalues.length; i++) {
+            Object value = upvalues[i].get();
+            if (value instanceof PetPetClosure captured && captured.interpreter != other) {
+                PetPetClosure copy = rebound.get(captured);
+                value = copy != null ? copy : captured.rebind(other, rebound);
+            }
+            Upvalue upvalue = new Upvalue(other, -1);
+            upvalue.value = value;
+            result.upvalues[i] = upvalue;
+        }
+        return result;
+    }
+
     @Override
     public Object callInvoking(Object... args) { //same as otherwise, change boolean variable
-        //Convert numbers to double
+        //Convert numbers to PetPet's
         for (int i = 0; i < args.length; i++)
-            if (args[i] instanceof Number n)
-                args[i] = n.doubleValue();
+            args[i] = PetPetNumber.normalize(args[i]);
         return interpreter.run(this, true, args);
     }
 
@@ -1,6 +1,10 @@
 package petpet.lang.run;
 
+import petpet.lang.compile.Bytecode;
 import petpet.lang.compile.Chunk;
+import petpet.lang.compile.Inliner;
+
+import java.util.function.Supplier;
 
 /**
  * Represents a function that's written in the language itself,
@@ -9,28 +13,144 @@ import petpet.lang.compile.Chunk;
 public class PetPetFunction {
 
     public final String name;
-    public final Chunk chunk;
     public final int paramCount;
     public final int numUpvalues;
+    public final boolean isGenerator; //Contains a yield, so calling it makes a generator
 
     public final int lineNumberOffset;
     public final int[] lineNumberTable;
 
+    //The chunk is either given up front by the compiler, or decoded on first use
+    //by the loader (for functions that come out of a bundle file)
+    private volatile Chunk chunk;
+    private Supplier<Chunk> chunkLoader;
+
+    //A copy of the chunk with hot calls inlined into it by the Inliner, which new
+    //calls of this function run instead. Frames already running keep their chunk.
+    private volatile Chunk specialized;
+    private int specializations;
+    private static final int MAX_SPECIALIZATIONS = 8;
+
+    //Cached result of touchesSharedState(). 0 = not yet known, 1 = doesn't, 2 = does
+    private volatile byte sharedStateAccess;
+
     public PetPetFunction(String name, Chunk chunk, int lineNumberOffset, int[] lineNumberTable, int paramCount, int numUpvalues) {
+        this(name, chunk, lineNumberOffset, lineNumberTable, paramCount, numUpvalues, false);
+    }
+
+    public PetPetFunction(String name, Chunk chunk, int lineNumberOffset, int[] lineNumberTable, int paramCount, int numUpvalues, boolean isGenerator) {
         this.name = name;
         this.chunk = chunk;
         this.paramCount = paramCount;
         this.numUpvalues = numUpvalues;
+        this.isGenerator = isGenerator;
         this.lineNumberTable = lineNumberTable;
         this.lineNumberOffset = lineNumberOffset;
     }
 
+    /**
+     * Creates a function whose chunk isn't decoded until the first
+     * time it's needed, which is generally the first time a closure
+     * of this function gets called.
+     */
+    public PetPetFunction(String name, Supplier<Chunk> chunkLoader, int lineNumberOffset, int[] lineNumberTable, int paramCount, int numUpvalues, boolean isGenerator) {
+        this(name, (Chunk) null, lineNumberOffset, lineNumberTable, paramCount, numUpvalues, isGenerator);
+        this.chunkLoader = chunkLoader;
+    }
+
+    public Chunk chunk() {
+        Chunk result = chunk;
+        return result != null ? result : materialize();
+    }
+
+    /**
+     * The chunk that calls of this function start running, which is the
+     * chunk, unless some calls have been inlined into a copy of it.
+     */
+    public Chunk entryChunk() {
+        Chunk result = specialized;
+        return result != null ? result : chunk();
+    }
+
+    //Called by the interpreter once the call at the given offset in the chunk has gone to
+    //the target enough times in a row. Does nothing if the chunk isn't the entry chunk anymore.
+    synchronized void inlineAt(Chunk chunk, int site, PetPetFunction target) {
+        if (chunk != entryChunk() || specializations >= MAX_SPECIALIZATIONS)
+            return;
+        Chunk result = Inliner.inline(this, chunk, site, target);
+        if (result != null) {
+            specialized = result;
+            specializations++;
+        }
+    }
+
+    /**
+     * Whether the chunk of this function has been decoded yet.
+     */
+    public boolean isMaterialized() {
+        return chunk != null;
+    }
+
+    private synchronized Chunk materialize() {
+        if (chunk == null) {
+            chunk = chunkLoader.get();
+            chunkLoader = null;
+        }
+        return chunk;
+    }
+
+    /**
+     * Whether this function, or any function defined inside it, reads or writes
+     * globals, assigns to upvalues, or yields. Ones that don't only see the outside
+     * world through their arguments and the values they capture. Calls to the math
+     * library don't count, since their guard only checks that math is still the builtin.
+     */
+    public boolean touchesSharedState() {
+        if (sharedStateAccess == 0)
+            sharedStateAccess = scanForSharedState() ? (byte) 2 : (byte) 1;
+        return sharedStateAccess == 2;
+    }
+
+    private boolean scanForSharedState() {
+        if (isGenerator)
+            return true;
+        Chunk chunk = chunk();
+        byte[] bytes = chunk.bytes;
+        PetPetFunction constFunc = null;
+        for (int i = 0; i < bytes.length; i++) {
+            byte code = bytes[i];
+            switch (code) {
+                case Bytecode.SET_GLOBAL, Bytecode.LOAD_GLOBAL, Bytecode.BIG_SET_GLOBAL, Bytecode.BIG_LOAD_GLOBAL,
+                        Bytecode.SET_UPVALUE, Bytecode.BIG_SET_UPVALUE, Bytecode.YIELD -> {
+                    return true;
+                }
+                case Bytecode.MATH_GUARD -> {
+                    //Skip the guard's own lookup of math, which only runs if math isn't the builtin anymore
+                    i += 4 + (short) (((bytes[i+2] & 0xff) << 8) | (bytes[i+3] & 0xff));
+                    constFunc = null;
+                    continue;
+                }
+                case Bytecode.CONSTANT -> constFunc = chunk.constants[bytes[i+1] & 0xff] instanceof PetPetFunction f ? f : null;
+                case Bytecode.BIG_CONSTANT -> constFunc = chunk.constants[((bytes[i+1] & 0xff) << 8) | (bytes[i+2] & 0xff)] instanceof PetPetFunction f ? f : null;
+                case Bytecode.CLOSURE, Bytecode.BIG_CLOSURE -> {
+                    if (constFunc.touchesSharedState())
+                        return true;
+                    i += constFunc.numUpvalues * (code == Bytecode.CLOSURE ? 2 : 3);
+                    constFunc = null;
+                    continue;
+                }
+                default -> constFunc = null;
+            }
+            i += Bytecode.operandBytes(code);
+        }
+        return false;
+    }
 
     public String toString() {
         return name;
     }
 
     public String prettyBytecode() {
-        return chunk.toString(0);
+        return chunk().toString(0);
     }
 }
@@ -0,0 +1,133 @@
+package petpet.lang.run;
+
+import petpet.external.PetPetReflector;
+import petpet.external.PetPetWhitelist;
+import petpet.types.PetPetList;
+import petpet.types.PetPetStream;
+
+import java.util.Iterator;
+
+/**
+ * What you get from calling a function that contains a yield.
+ * The function's frame lives in here instead of on the interpreter's
+ * stack, and runs only when the next value is asked for, up until
+ * its next yield. So values are produced one at a time, and nothing
+ * past the last one asked for is ever computed.
+ */
+@PetPetWhitelist
+public class PetPetGenerator {
+
+    public static final PetPetClass GENERATOR_CLASS;
+
+    static {
+        GENERATOR_CLASS = PetPetReflector.reflect(PetPetGenerator.class, "generator");
+    }
+
+    final Interpreter interpreter;
+    private final String name;
+
+    //The generator's frame, while it isn't running. Null while running or once finished.
+    SavedFrames saved;
+    //Set by the interpreter when the frame stops at a yield, rather than returning
+    boolean yielded;
+
+    private boolean running, finished, hasBuffered;
+    private Object buffered;
+
+    PetPetGenerator(Interpreter interpreter, PetPetClosure closure, Object[] stackSlice) {
+        this.interpreter = interpreter;
+        this.name = closure.function.name;
+        this.saved = SavedFrames.notStarted(closure, stackSlice);
+    }
+
+    //Runs the frame up to its next yield, buffering the value
+    private void advance() {
+        if (running)
+            throw new PetPetException("Generator is already running");
+        running = true;
+        try {
+            Object value = interpreter.resumeGenerator(this);
+            if (yielded) {
+                buffered = value;
+                hasBuffered = true;
+            } else {
+                finished = true;
+            }
+        } catch (RuntimeException e) {
+            finished = true;
+            saved = null;
+            throw e;
+        } finally {
+            running = false;
+        }
+    }
+
+    /**
+     * The next yielded value, or null once the generator is done.
+     */
+    @PetPetWhitelist
+    public Object next() {
+        if (!hasBuffered && !finished)
+            advance();
+        if (!hasBuffered)
+            return null;
+        Object result = buffered;
+        buffered = null;
+        hasBuffered = false;
+        return result;
+    }
+
+    /**
+     * Whether there are no values left. Runs the generator
+     * up to its next yield if needed to find out.
+     */
+    @PetPetWhitelist
+    public boolean done() {
+        if (!hasBuffered && !finished)
+            advance();
+        return !hasBuffered;
+    }
+
+    @PetPetWhitelist
+    public PetPetGenerator each(PetPetCallable func) {
+        while (!done())
+            func.call(next());
+        return this;
+    }
+
+    /**
+     * A lazy pipeline over the remaining values, see PetPetStream.
+     * Values are only generated as the pipeline needs them, so this
+     * works for generators that never end, as long as there's a take().
+     */
+    @PetPetWhitelist
+    public PetPetStream iter() {
+        return new PetPetStream(new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return !done();
+            }
+            @Override
+            public Object next() {
+                return PetPetGenerator.this.next();
+            }
+        });
+    }
+
+    /**
+     * Puts all remaining values in a list. Never finishes
+     * for generators that don't end!
+     */
+    @PetPetWhitelist
+    public PetPetList<Object> collect() {
+        PetPetList<Object> result = new PetPetList<>();
+        while (!done())
+            result.add(next());
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "generator[" + name + "]";
+    }
+}
@@ -0,0 +1,42 @@
+package petpet.lang.run;
+
+import petpet.lang.compile.Chunk;
+
+/**
+ * Call frames that were moved off of the interpreter, to be put back later,
+ * possibly somewhere else on the stack. Used for suspended continuations and
+ * generators. Frame pointers and upvalue indices are relative to the start
+ * of the saved stack slice, and the upvalues are closed while saved.
+ */
+final class SavedFrames {
+    PetPetClosure[] closures;
+    int[] ips;
+    int[] fps;
+    Intrinsic.Loop[] intrinsics; //non-null for frames called by an intrinsic loop
+    int[] tailCalls; //how many tail calls each frame has been reused for
+    Chunk[] chunks; //the chunk each frame was running, null for the function's entry chunk
+    Object[] stack;
+    Upvalue[] openUpvalues; //highest index first
+    int[] upvalueIndices;
+
+    private static final Upvalue[] NO_UPVALUES = new Upvalue[0];
+    private static final int[] NO_INDICES = new int[0];
+
+    /**
+     * A single frame that hasn't started running yet, with the given stack slice
+     * (the callee or instance, followed by the args).
+     */
+    static SavedFrames notStarted(PetPetClosure closure, Object[] stack) {
+        SavedFrames result = new SavedFrames();
+        result.closures = new PetPetClosure[] {closure};
+        result.ips = new int[] {0};
+        result.fps = new int[] {0};
+        result.intrinsics = new Intrinsic.Loop[1];
+        result.tailCalls = new int[1];
+        result.chunks = new Chunk[1];
+        result.stack = stack;
+        result.openUpvalues = NO_UPVALUES;
+        result.upvalueIndices = NO_INDICES;
+        return result;
+    }
+}
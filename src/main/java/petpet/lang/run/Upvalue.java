@@ -1,26 +1,27 @@
 package petpet.lang.run;
 
-import java.util.List;
-
 public final class Upvalue {
-    public Object obj;
-    public int idx;
-    public Upvalue next; //it is also a linked list node
+    //While open, the value lives on the interpreter's stack at idx.
+    //Once closed, it lives in value instead, and idx is -1.
+    final Interpreter interpreter;
+    int idx;
+    public Object value;
+
     public Upvalue(Interpreter interpreter, int index) {
-        this.obj = interpreter;
+        this.interpreter = interpreter;
         this.idx = index;
-        next = null;
     }
     public Object get() {
-        if (idx != -1) return ((Interpreter) obj).get(idx);
-        return obj;
+        int i = idx;
+        return i < 0 ? value : interpreter.stack[i];
     }
     public void set(Object o) {
-        if (idx != -1) ((Interpreter) obj).set(idx, o);
-        else obj = o;
+        int i = idx;
+        if (i < 0) value = o;
+        else interpreter.stack[i] = o;
     }
     public void close() {
-        obj = get();
+        value = interpreter.stack[idx];
         idx = -1;
     }
 }
@@ -7,7 +7,11 @@ import petpet.types.immutable.PetPetListView;
 
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
 
 /**
  * List type
@@ -36,6 +40,27 @@ public class PetPetList<T> extends ArrayList<T> {
         return "list[" + size() + "]";
     }
 
+    //Numbers are found by value, so 1 finds 1.0 and the other way around
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof Number))
+            return super.indexOf(o);
+        for (int i = 0; i < size(); i++)
+            if (PetPetNumber.equal(o, get(i)))
+                return i;
+        return -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        if (!(o instanceof Number))
+            return super.lastIndexOf(o);
+        for (int i = size()-1; i >= 0; i--)
+            if (PetPetNumber.equal(o, get(i)))
+                return i;
+        return -1;
+    }
+
     public static final PetPetClass LIST_CLASS;
 
     static {
@@ -60,8 +85,25 @@ public class PetPetList<T> extends ArrayList<T> {
         ((JavaFunction) LIST_CLASS.getMethod("filter")).costPenalizer = PetPetList.functionalCostPenalty(1);
         ((JavaFunction) LIST_CLASS.getMethod("foldR")).costPenalizer = PetPetList.functionalCostPenalty(2);
         ((JavaFunction) LIST_CLASS.getMethod("foldL")).costPenalizer = PetPetList.functionalCostPenalty(2);
+        ((JavaFunction) LIST_CLASS.getMethod("pmap")).costPenalizer = PetPetList.functionalCostPenalty(1);
+        ((JavaFunction) LIST_CLASS.getMethod("pfilter")).costPenalizer = PetPetList.functionalCostPenalty(1);
+        ((JavaFunction) LIST_CLASS.getMethod("peach")).costPenalizer = PetPetList.functionalCostPenalty(1);
+
+        //Run the sequential ones inside the interpreter when given a script function
+        ((JavaFunction) LIST_CLASS.getMethod("map")).intrinsic = new Intrinsic("list.map", 1, 1, args -> args[0] instanceof PetPetList<?> l ? new MapLoop(ofObjects(l)) : null);
+        ((JavaFunction) LIST_CLASS.getMethod("filter")).intrinsic = new Intrinsic("list.filter", 1, 1, args -> args[0] instanceof PetPetList<?> l ? new FilterLoop(ofObjects(l)) : null);
+        ((JavaFunction) LIST_CLASS.getMethod("each")).intrinsic = new Intrinsic("list.each", 1, 1, args -> args[0] instanceof PetPetList<?> l ? new EachLoop(ofObjects(l), false) : null);
+        ((JavaFunction) LIST_CLASS.getMethod("eachI")).intrinsic = new Intrinsic("list.eachI", 1, 2, args -> args[0] instanceof PetPetList<?> l ? new EachLoop(ofObjects(l), true) : null);
+        ((JavaFunction) LIST_CLASS.getMethod("foldR")).intrinsic = new Intrinsic("list.foldR", 1, 2, args -> args[0] instanceof PetPetList<?> l ? new FoldLoop(ofObjects(l), args[2], true) : null);
+        ((JavaFunction) LIST_CLASS.getMethod("foldL")).intrinsic = new Intrinsic("list.foldL", 2, 2, args -> args[0] instanceof PetPetList<?> l ? new FoldLoop(ofObjects(l), args[1], false) : null);
     }
 
+    //Lists smaller than this aren't worth splitting up, and the parallel
+    //methods just run sequentially on them
+    private static final int MIN_PARALLEL_SIZE = 32;
+    private static final int MIN_CHUNK_SIZE = 8;
+    private static final long COST_SHARE = 1000; //How much of the caller's budget a chunk takes at a time
+
     //Penalty function, charging the caller a (small) price for each
     //function call they make through the functional list methods
     private static ToIntFunction<Interpreter> functionalCostPenalty(int args) {
@@ -123,7 +165,7 @@ public class PetPetList<T> extends ArrayList<T> {
     public PetPetList<T> eachI(PetPetCallable func) {
         checkFunc(func, 2, "eachI");
         for (int i = 0; i < size(); i++)
-            if (func.call((double) i, get(i)) instanceof Boolean b && b)
+            if (func.call((long) i, get(i)) instanceof Boolean b && b)
                 break;
         return this;
     }
@@ -145,6 +187,247 @@ public class PetPetList<T> extends ArrayList<T> {
     }
 
 
+    /**
+     * The list, typed as holding Objects. Scripts can put anything in any list whatever its
+     * type parameter says, so this is how java code should see a list it got from a script
+     * before putting things in it.
+     */
+    @SuppressWarnings("unchecked")
+    public static PetPetList<Object> ofObjects(PetPetList<?> list) {
+        return (PetPetList<Object>) list;
+    }
+
+    //The intrinsic loops, which do the same as the methods above,
+    //but have the interpreter make the calls. See Intrinsic.
+    private static final class MapLoop extends Intrinsic.Loop {
+        private final PetPetList<Object> list;
+        private int i = 0;
+        private MapLoop(PetPetList<Object> list) {
+            super(1);
+            this.list = list;
+        }
+        @Override
+        protected boolean next() {
+            if (i >= list.size())
+                return false;
+            callArgs[0] = list.get(i);
+            return true;
+        }
+        @Override
+        protected void accept(Object result) {
+            list.set(i++, result);
+        }
+        @Override
+        protected Object result() {
+            return list;
+        }
+    }
+
+    private static final class FilterLoop extends Intrinsic.Loop {
+        private final PetPetList<Object> list;
+        private int i = 0, kept = 0;
+        private FilterLoop(PetPetList<Object> list) {
+            super(1);
+            this.list = list;
+        }
+        @Override
+        protected boolean next() {
+            if (i >= list.size())
+                return false;
+            callArgs[0] = list.get(i);
+            return true;
+        }
+        @Override
+        protected void accept(Object result) {
+            if (!(result instanceof Boolean keep))
+                throw new PetPetException("list.filter() expects function to return a boolean");
+            if (keep)
+                list.set(kept++, callArgs[0]);
+            i++;
+        }
+        @Override
+        protected Object result() {
+            if (kept < list.size())
+                list.subList(kept, list.size()).clear();
+            return list;
+        }
+    }
+
+    private static final class EachLoop extends Intrinsic.Loop {
+        private final PetPetList<Object> list;
+        private final boolean withIndex;
+        private int i = 0;
+        private boolean stopped;
+        private EachLoop(PetPetList<Object> list, boolean withIndex) {
+            super(withIndex ? 2 : 1);
+            this.list = list;
+            this.withIndex = withIndex;
+        }
+        @Override
+        protected boolean next() {
+            if (stopped || i >= list.size())
+                return false;
+            if (withIndex) {
+                callArgs[0] = (long) i;
+                callArgs[1] = list.get(i);
+            } else {
+                callArgs[0] = list.get(i);
+            }
+            return true;
+        }
+        @Override
+        protected void accept(Object result) {
+            i++;
+            if (result instanceof Boolean b && b)
+                stopped = true;
+        }
+        @Override
+        protected Object result() {
+            return list;
+        }
+    }
+
+    private static final class FoldLoop extends Intrinsic.Loop {
+        private final PetPetList<Object> list;
+        private final boolean fromRight;
+        private Object accum;
+        private int i;
+        private FoldLoop(PetPetList<Object> list, Object accum, boolean fromRight) {
+            super(2);
+            this.list = list;
+            this.accum = accum;
+            this.fromRight = fromRight;
+            i = fromRight ? list.size()-1 : 0;
+        }
+        @Override
+        protected boolean next() {
+            if (fromRight) {
+                if (i < 0)
+                    return false;
+                callArgs[0] = list.get(i);
+                callArgs[1] = accum;
+            } else {
+                if (i >= list.size())
+                    return false;
+                callArgs[0] = accum;
+                callArgs[1] = list.get(i);
+            }
+            return true;
+        }
+        @Override
+        protected void accept(Object result) {
+            accum = result;
+            i += fromRight ? -1 : 1;
+        }
+        @Override
+        protected Object result() {
+            return accum;
+        }
+    }
+
+    //Parallel versions of map, filter and each. These only go parallel if the function
+    //is pure (see PetPetClosure.isPure()), and otherwise do the same as their sequential
+    //versions. Unlike each(), peach() can't be stopped early, and calls happen in no particular order.
+    @PetPetWhitelist
+    public PetPetList<T> pmap(PetPetCallable func) {
+        checkFunc(func, 1, "pmap");
+        if (!canParallelize(func))
+            return map(func);
+        Object[] results = parallelCall((PetPetClosure) func);
+        for (int i = 0; i < results.length; i++) {
+            @SuppressWarnings("unchecked") //lists hold whatever scripts put in them, so T is always Object at runtime
+            T result = (T) results[i];
+            super.set(i, result);
+        }
+        return this;
+    }
+    @PetPetWhitelist
+    public PetPetList<T> pfilter(PetPetCallable func) {
+        checkFunc(func, 1, "pfilter");
+        if (!canParallelize(func))
+            return filter(func);
+        Object[] results = parallelCall((PetPetClosure) func);
+        int kept = 0;
+        for (int i = 0; i < results.length; i++) {
+            if (!(results[i] instanceof Boolean keep))
+                throw new PetPetException("list.pfilter() expects function to return a boolean");
+            if (keep)
+                super.set(kept++, super.get(i));
+        }
+        removeRange(kept, size());
+        return this;
+    }
+    @PetPetWhitelist
+    public PetPetList<T> peach(PetPetCallable func) {
+        checkFunc(func, 1, "peach");
+        if (!canParallelize(func)) {
+            for (Object o : this)
+                func.call(o);
+            return this;
+        }
+        parallelCall((PetPetClosure) func);
+        return this;
+    }
+
+    private boolean canParallelize(PetPetCallable func) {
+        return size() >= MIN_PARALLEL_SIZE && ForkJoinPool.getCommonPoolParallelism() > 1
+                && func instanceof PetPetClosure closure && closure.isPure();
+    }
+
+    //Calls the closure on every element, splitting the list into chunks that each run on
+    //their own fork of the interpreter in the common pool. The chunks share whatever budget
+    //the caller had left, taking a piece of it at a time, so a runaway function still gets
+    //stopped, and the cost of all of them is added to the calling interpreter afterwards.
+    private Object[] parallelCall(PetPetClosure func) {
+        Interpreter caller = func.interpreter;
+        Object[] elements = toArray();
+        Object[] results = new Object[elements.length];
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, elements.length / (ForkJoinPool.getCommonPoolParallelism() * 4));
+        int numChunks = (elements.length + chunkSize - 1) / chunkSize;
+        long budget = Math.max(0, caller.maxCost - caller.cost);
+        AtomicLong remaining = new AtomicLong(budget);
+        LongAdder totalCost = new LongAdder();
+        try {
+            IntStream.range(0, numChunks).parallel().forEach(chunk -> {
+                Interpreter fork = caller.fork();
+                Runnable outOfBudget = fork.onHitMaxCost;
+                long[] used = new long[2]; //cost of the shares used up so far, and the size of the current one
+                fork.maxCost = used[1] = takeShare(remaining);
+                fork.onHitMaxCost = () -> {
+                    used[0] += fork.cost;
+                    fork.cost = 0;
+                    used[1] = takeShare(remaining);
+                    if (used[1] == 0) {
+                        fork.maxCost = caller.maxCost; //for the error message
+                        outOfBudget.run();
+                    }
+                    fork.maxCost = used[1];
+                };
+                PetPetClosure forked = func.rebind(fork);
+                try {
+                    int end = Math.min(elements.length, (chunk + 1) * chunkSize);
+                    for (int i = chunk * chunkSize; i < end; i++)
+                        results[i] = forked.call(elements[i]);
+                } finally {
+                    totalCost.add(used[0] + fork.cost);
+                    remaining.addAndGet(Math.max(0, used[1] - fork.cost)); //give back what's left for the other chunks
+                }
+            });
+        } catch (PetPetException e) {
+            //Errors from other threads are rethrown as new exceptions of the same type, with no message, wrapping the real one
+            throw e.getCause() instanceof PetPetException original ? original : e;
+        } finally {
+            caller.penalizeCost(totalCost.sum());
+        }
+        return results;
+    }
+
+    //Takes up to COST_SHARE from the remaining budget, returning how much it got
+    private static long takeShare(AtomicLong remaining) {
+        long before = remaining.getAndUpdate(r -> r - Math.min(r, COST_SHARE));
+        return Math.min(before, COST_SHARE);
+    }
+
     @PetPetWhitelist
     public PetPetList<T> insert(int index, T value) {
         add((index % size() + size()) % size(), value);
@@ -162,6 +445,14 @@ public class PetPetList<T> extends ArrayList<T> {
         return this;
     }
 
+    /**
+     * A lazy pipeline over the elements, see PetPetStream.
+     */
+    @PetPetWhitelist
+    public PetPetStream iter() {
+        return new PetPetStream(iterator());
+    }
+
     @PetPetWhitelist
     public PetPetListView<T> view() {
         return new PetPetListView<>(this);
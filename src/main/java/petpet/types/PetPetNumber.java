@@ -0,0 +1,203 @@
+package petpet.types;
+
+import java.util.Objects;
+
+/**
+ * Helpers for PetPet's two kinds of number: Longs, for integers, and Doubles.
+ * Integer literals are Longs, and arithmetic on two Longs stays a Long as long
+ * as the answer is exact, becoming a Double otherwise (on overflow, or division
+ * that doesn't come out even). Anything mixing the two is done as doubles.
+ *
+ * The two kinds are the same type as far as scripts can tell: they're both "num",
+ * compare equal when they have the same value, and are the same key in a table.
+ */
+public final class PetPetNumber {
+
+    private PetPetNumber() {}
+
+    /**
+     * Boxed numbers for the integers in this range are made once and shared, so that
+     * counters, indices and sizes don't each allocate a new object. Both Longs and
+     * Doubles with these values are cached, each made the first time it's needed.
+     */
+    public static final int DEFAULT_CACHE_LOW = -1024, DEFAULT_CACHE_HIGH = 65535;
+    private static BoxCache cache = new BoxCache(DEFAULT_CACHE_LOW, DEFAULT_CACHE_HIGH);
+
+    private record BoxCache(int low, Long[] longs, Double[] doubles) {
+        BoxCache(int low, int high) {
+            this(low, new Long[Math.max(0, high - low + 1)], new Double[Math.max(0, high - low + 1)]);
+        }
+    }
+
+    //Changes which integers have their boxes shared, from low to high inclusive. Empty if high < low.
+    public static void setCacheRange(int low, int high) {
+        if ((long) high - low + 1 > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Number cache range too large");
+        cache = new BoxCache(low, high);
+    }
+
+    public static Long box(long l) {
+        BoxCache c = cache;
+        long i = l - c.low;
+        if (i < 0 || i >= c.longs.length)
+            return l;
+        Long boxed = c.longs[(int) i];
+        if (boxed == null)
+            c.longs[(int) i] = boxed = l; //racing threads may each make one, which is fine
+        return boxed;
+    }
+
+    public static Double box(double d) {
+        BoxCache c = cache;
+        long i = (long) d - c.low;
+        //-0.0 isn't the same as 0.0, so it doesn't get 0.0's box
+        if (i < 0 || i >= c.doubles.length || (long) d != d || d == 0 && Double.doubleToRawLongBits(d) != 0)
+            return d;
+        Double boxed = c.doubles[(int) i];
+        if (boxed == null)
+            c.doubles[(int) i] = boxed = d;
+        return boxed;
+    }
+
+    //Turns any java number into one of PetPet's. Everything else is left alone.
+    public static Object normalize(Object o) {
+        if (o instanceof Double || o instanceof Long || !(o instanceof Number n))
+            return o;
+        if (o instanceof Integer || o instanceof Short || o instanceof Byte)
+            return box(n.longValue());
+        return box(n.doubleValue());
+    }
+
+    public static Object add(long a, long b) {
+        long result = a + b;
+        if (((a ^ result) & (b ^ result)) < 0)
+            return (double) a + (double) b;
+        return box(result);
+    }
+
+    public static Object sub(long a, long b) {
+        long result = a - b;
+        if (((a ^ b) & (a ^ result)) < 0)
+            return (double) a - (double) b;
+        return box(result);
+    }
+
+    public static Object mul(long a, long b) {
+        long hi = Math.multiplyHigh(a, b);
+        long result = a * b;
+        if (hi != (result >> 63))
+            return (double) a * (double) b;
+        return box(result);
+    }
+
+    public static Object div(long a, long b) {
+        if (b != 0 && a % b == 0 && !(a == Long.MIN_VALUE && b == -1))
+            return box(a / b);
+        return box((double) a / (double) b);
+    }
+
+    public static Object mod(long a, long b) {
+        if (b == 0)
+            return Double.NaN; //same as with doubles
+        return box(a % b);
+    }
+
+    //Shifting by 64 or more shifts every bit out, leaving 0, or -1 for >> of a negative number.
+    //Negative amounts shift the other way, unlike java, which only looks at the low 6 bits.
+    public static Object shl(long a, long b) {
+        if (b < 0)
+            return box(b <= -64 ? a >> 63 : a >> -b);
+        return box(b >= 64 ? 0 : a << b);
+    }
+
+    public static Object shr(long a, long b) {
+        if (b < 0)
+            return box(b <= -64 ? 0 : a << -b);
+        return box(b >= 64 ? a >> 63 : a >> b);
+    }
+
+    //Whether two values are equal, with numbers compared by value regardless of kind
+    public static boolean equal(Object a, Object b) {
+        if (a instanceof Long l && b instanceof Double d)
+            return sameValue(l, d);
+        if (a instanceof Double d && b instanceof Long l)
+            return sameValue(l, d);
+        return Objects.equals(a, b);
+    }
+
+    private static boolean sameValue(long l, double d) {
+        return d >= -0x1p63 && d < 0x1p63 && (long) d == l && (double) l == d;
+    }
+
+    //The value as a long, for the bitwise operators, or null if it isn't an integer
+    public static Long toLong(Object o) {
+        if (o instanceof Long l)
+            return l;
+        if (o instanceof Double d && d >= -0x1p63 && d < 0x1p63 && (long) (double) d == d)
+            return (long) (double) d;
+        return null;
+    }
+
+    //The value as an int, for java functions and list indices. Out of range values stick at
+    //the nearest end instead of wrapping around, for longs the same as doubles always have.
+    public static int toInt(Number n) {
+        if (n instanceof Long l)
+            return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, l));
+        return n.intValue();
+    }
+
+    //Doubles with integer values are stored in tables as Longs, so 1 and 1.0 are the same key
+    public static Object tableKey(Object key) {
+        if (key instanceof Double d && d >= -0x1p63 && d < 0x1p63 && (long) (double) d == d)
+            return (long) (double) d;
+        return key;
+    }
+
+    /**
+     * The result of an arithmetic or comparison operator on two numbers, worked out the way the
+     * interpreter would, for folding constants at compile time. Null if the operator isn't one of these.
+     */
+    public static Object arith(String op, Number l, Number r) {
+        if (l instanceof Long a && r instanceof Long b) {
+            return switch (op) {
+                case "add" -> add(a, b);
+                case "sub" -> sub(a, b);
+                case "mul" -> mul(a, b);
+                case "div" -> div(a, b);
+                case "mod" -> mod(a, b);
+                case "band" -> a & b;
+                case "bor" -> a | b;
+                case "bxor" -> a ^ b;
+                case "shl" -> shl(a, b);
+                case "shr" -> shr(a, b);
+                case "lt" -> a < b;
+                case "gt" -> a > b;
+                case "lte" -> a <= b;
+                case "gte" -> a >= b;
+                case "eq" -> a.equals(b);
+                case "neq" -> !a.equals(b);
+                default -> null;
+            };
+        }
+        double a = l.doubleValue(), b = r.doubleValue();
+        return switch (op) {
+            case "add" -> a + b;
+            case "sub" -> a - b;
+            case "mul" -> a * b;
+            case "div" -> a / b;
+            case "mod" -> a % b;
+            case "band", "bor", "bxor", "shl", "shr" -> {
+                Long x = toLong(l), y = toLong(r);
+                yield x == null || y == null ? null : arith(op, x, y);
+            }
+            case "lt" -> a < b;
+            case "gt" -> a > b;
+            case "lte" -> a <= b;
+            case "gte" -> a >= b;
+            case "eq" -> equal(l, r);
+            case "neq" -> !equal(l, r);
+            default -> null;
+        };
+    }
+
+}
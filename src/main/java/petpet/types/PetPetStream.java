@@ -0,0 +1,172 @@
+package petpet.types;
+
+import petpet.external.PetPetReflector;
+import petpet.external.PetPetWhitelist;
+import petpet.lang.run.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.function.Predicate;
+
+/**
+ * A lazy pipeline over the values of a list, table, or generator.
+ * map(), filter(), take() and skip() don't do anything right away, they
+ * just add a stage to the pipeline. It only runs once it reaches one of
+ * collect(), fold(), count() or first(), and then every value goes through
+ * all the stages in a single pass, without building a list for each one.
+ *
+ * A stream can only be run once.
+ */
+@PetPetWhitelist
+public class PetPetStream {
+
+    public static final PetPetClass STREAM_CLASS;
+
+    static {
+        STREAM_CLASS = PetPetReflector.reflect(PetPetStream.class, "stream");
+    }
+
+    //Cost charged for each function call, the same as the functional list methods
+    private static final int CALL_COST = 3;
+
+    private static final int MAP = 0, FILTER = 1, TAKE = 2, SKIP = 3;
+
+    private record Stage(int kind, PetPetCallable func, int count) {}
+
+    private final Iterator<?> source;
+    private final ArrayList<Stage> stages = new ArrayList<>();
+    private boolean used;
+
+    public PetPetStream(Iterator<?> source) {
+        this.source = source;
+    }
+
+    private static void checkFunc(PetPetCallable func, int expectedArgs, String name) throws PetPetException {
+        if (func.paramCount() != expectedArgs)
+            throw new PetPetException("stream." + name + "() expects " +
+                    expectedArgs + "-arg function, got " + func.paramCount() + "-arg");
+    }
+
+    private PetPetStream addStage(int kind, PetPetCallable func, int count) {
+        if (used)
+            throw new PetPetException("Stream was already used");
+        stages.add(new Stage(kind, func, count));
+        return this;
+    }
+
+    @PetPetWhitelist
+    public PetPetStream map(PetPetCallable func) {
+        checkFunc(func, 1, "map");
+        return addStage(MAP, func, 0);
+    }
+    @PetPetWhitelist
+    public PetPetStream filter(PetPetCallable func) {
+        checkFunc(func, 1, "filter");
+        return addStage(FILTER, func, 0);
+    }
+    @PetPetWhitelist
+    public PetPetStream take(int count) {
+        return addStage(TAKE, null, count);
+    }
+    @PetPetWhitelist
+    public PetPetStream skip(int count) {
+        return addStage(SKIP, null, count);
+    }
+
+    @PetPetWhitelist
+    public PetPetList<Object> collect() {
+        PetPetList<Object> result = new PetPetList<>();
+        run(result::add);
+        return result;
+    }
+    @PetPetWhitelist
+    public Object fold(Object accum, PetPetCallable func) {
+        checkFunc(func, 2, "fold");
+        Object[] res = {accum};
+        run(value -> {
+            res[0] = call(func, res[0], value);
+            return true;
+        });
+        return res[0];
+    }
+    @PetPetWhitelist
+    public int count() {
+        int[] count = {0};
+        run(value -> {
+            count[0]++;
+            return true;
+        });
+        return count[0];
+    }
+    /**
+     * The first value to make it through, or null if none do.
+     * Nothing after it is computed.
+     */
+    @PetPetWhitelist
+    public Object first() {
+        Object[] res = {null};
+        run(value -> {
+            res[0] = value;
+            return false;
+        });
+        return res[0];
+    }
+
+    //Pulls values from the source through all the stages, handing the ones that make it
+    //to the sink. Stops once the source runs out, the sink returns false, or a take() has
+    //let through all it's going to, so nothing is pulled from the source that isn't needed.
+    private void run(Predicate<Object> sink) {
+        if (used)
+            throw new PetPetException("Stream was already used");
+        used = true;
+        Stage[] stages = this.stages.toArray(new Stage[0]);
+        int[] remaining = new int[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            remaining[i] = stages[i].count;
+            if (stages[i].kind == TAKE && remaining[i] <= 0)
+                return;
+        }
+
+        while (source.hasNext()) {
+            Object value = source.next();
+            boolean dropped = false, last = false;
+            stageLoop:
+            for (int i = 0; i < stages.length; i++) {
+                Stage stage = stages[i];
+                switch (stage.kind) {
+                    case MAP -> value = call(stage.func, value);
+                    case FILTER -> {
+                        if (!(Boolean) call(stage.func, value)) {
+                            dropped = true;
+                            break stageLoop;
+                        }
+                    }
+                    case SKIP -> {
+                        if (remaining[i] > 0) {
+                            remaining[i]--;
+                            dropped = true;
+                            break stageLoop;
+                        }
+                    }
+                    case TAKE -> {
+                        if (--remaining[i] == 0)
+                            last = true;
+                    }
+                }
+            }
+            if (!dropped && !sink.test(value) || last)
+                return;
+        }
+    }
+
+    private static Object call(PetPetCallable func, Object... args) {
+        if (func instanceof PetPetClosure closure)
+            closure.interpreter.penalizeCost(CALL_COST);
+        return func.call(args);
+    }
+
+    @Override
+    public String toString() {
+        return "stream";
+    }
+}
@@ -22,7 +22,7 @@ public class PetPetString {
         //i love arbitrarily guessing on cost penalties with no benchmarking whatsoever ! :D
 
         STRING_CLASS.addMethod("sub", new JavaFunction(PetPetString.class, "sub", false,
-                i -> Math.max(0, (int) ((Double) i.peek() - (Double) i.peek(1)) / 8)
+                i -> Math.max(0, (int) (((Number) i.peek()).doubleValue() - ((Number) i.peek(1)).doubleValue()) / 8)
         ));
         STRING_CLASS.addMethod("len", new JavaFunction(String.class, "length", true));
         STRING_CLASS.addMethod("starts", new JavaFunction(String.class, "startsWith", true, oneLengthPenalizer(8), String.class));
@@ -76,10 +76,18 @@ public class PetPetString {
     }
 
     /**
-     * Return the parsed number, or null if it failed
+     * Return the parsed number, or null if it failed. Integers parse as integers,
+     * like number literals do.
      */
-    public static Double parseNum(String str) {
+    public static Object parseNum(String str) {
         try {
+            if (str.indexOf('.') == -1) {
+                try {
+                    return Long.parseLong(str);
+                } catch (NumberFormatException notInteger) {
+                    //could still be a double, like "1e5"
+                }
+            }
             return Double.parseDouble(str);
         } catch (NumberFormatException e) {
             return null;
@@ -6,7 +6,10 @@ import petpet.lang.run.*;
 import petpet.types.immutable.PetPetTableView;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.function.ToIntFunction;
 
 /**
@@ -39,6 +42,89 @@ public class PetPetTable<K, V> extends HashMap<K, V> {
         return "table[" + size() + "]";
     }
 
+    //Keys go through PetPetNumber.tableKey(), so 1 and 1.0 are the same key
+    @Override
+    public V get(Object key) {
+        return super.get(PetPetNumber.tableKey(key));
+    }
+
+    @Override
+    public V getOrDefault(Object key, V defaultValue) {
+        return super.getOrDefault(PetPetNumber.tableKey(key), defaultValue);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return super.containsKey(PetPetNumber.tableKey(key));
+    }
+
+    @Override
+    public V remove(Object key) {
+        return super.remove(PetPetNumber.tableKey(key));
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        return super.remove(PetPetNumber.tableKey(key), value);
+    }
+
+    //HashMap's versions of these don't go through put(), so they need the keys changed too
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        for (Map.Entry<? extends K, ? extends V> entry : m.entrySet())
+            put(entry.getKey(), entry.getValue());
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return super.putIfAbsent(tableKey(key), value);
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        return super.replace(tableKey(key), value);
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        return super.replace(tableKey(key), oldValue, newValue);
+    }
+
+    @Override
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        return super.computeIfAbsent(tableKey(key), mappingFunction);
+    }
+
+    @Override
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        return super.computeIfPresent(tableKey(key), remappingFunction);
+    }
+
+    @Override
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        return super.compute(tableKey(key), remappingFunction);
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        return super.merge(tableKey(key), value, remappingFunction);
+    }
+
+    @SuppressWarnings("unchecked") //scripts can use any key whatever K says, so this is no worse
+    private static <K> K tableKey(K key) {
+        return (K) PetPetNumber.tableKey(key);
+    }
+
+    /**
+     * The table, typed as holding Objects. Scripts can put anything in any table whatever its
+     * type parameters say, so this is how java code should see a table it got from a script
+     * before putting things in it.
+     */
+    @SuppressWarnings("unchecked")
+    public static PetPetTable<Object, Object> ofObjects(PetPetTable<?, ?> table) {
+        return (PetPetTable<Object, Object>) table;
+    }
+
     public static final PetPetClass TABLE_CLASS;
 
     static {
@@ -61,6 +147,11 @@ public class PetPetTable<K, V> extends HashMap<K, V> {
         ((JavaFunction) TABLE_CLASS.getMethod("eachK")).costPenalizer = PetPetTable.costPenalty(1);
         ((JavaFunction) TABLE_CLASS.getMethod("eachV")).costPenalizer = PetPetTable.costPenalty(1);
         ((JavaFunction) TABLE_CLASS.getMethod("copy")).costPenalizer = PetPetTable.costPenalty(0);
+
+        //Run the each methods inside the interpreter when given a script function
+        ((JavaFunction) TABLE_CLASS.getMethod("each")).intrinsic = new Intrinsic("table.each", 1, 2, args -> args[0] instanceof PetPetTable<?, ?> t ? new EachLoop(t, true, true) : null);
+        ((JavaFunction) TABLE_CLASS.getMethod("eachK")).intrinsic = new Intrinsic("table.eachK", 1, 1, args -> args[0] instanceof PetPetTable<?, ?> t ? new EachLoop(t, true, false) : null);
+        ((JavaFunction) TABLE_CLASS.getMethod("eachV")).intrinsic = new Intrinsic("table.eachV", 1, 1, args -> args[0] instanceof PetPetTable<?, ?> t ? new EachLoop(t, false, true) : null);
     }
 
     //Penalty function, charging the caller (a small price) for each
@@ -77,7 +168,7 @@ public class PetPetTable<K, V> extends HashMap<K, V> {
 
     @Override
     public V put(K key, V value) {
-        super.put(key, value);
+        super.put(tableKey(key), value);
         return value;
     }
 
@@ -108,6 +199,54 @@ public class PetPetTable<K, V> extends HashMap<K, V> {
         return this;
     }
 
+    //The intrinsic loop for the each methods, see Intrinsic
+    private static final class EachLoop extends Intrinsic.Loop {
+        private final PetPetTable<?, ?> table;
+        private final Iterator<? extends Map.Entry<?, ?>> entries;
+        private final boolean keys, values;
+        private boolean stopped;
+        private EachLoop(PetPetTable<?, ?> table, boolean keys, boolean values) {
+            super(keys && values ? 2 : 1);
+            this.table = table;
+            this.entries = table.entrySet().iterator();
+            this.keys = keys;
+            this.values = values;
+        }
+        @Override
+        protected boolean next() {
+            if (stopped || !entries.hasNext())
+                return false;
+            Map.Entry<?, ?> entry = entries.next();
+            if (keys)
+                callArgs[0] = entry.getKey();
+            if (values)
+                callArgs[keys ? 1 : 0] = entry.getValue();
+            return true;
+        }
+        @Override
+        protected void accept(Object result) {
+            if (result instanceof Boolean b && b)
+                stopped = true;
+        }
+        @Override
+        protected Object result() {
+            return table;
+        }
+    }
+
+    /**
+     * Lazy pipelines over the keys or values, see PetPetStream.
+     */
+    @PetPetWhitelist
+    public PetPetStream iterK() {
+        return new PetPetStream(keySet().iterator());
+    }
+
+    @PetPetWhitelist
+    public PetPetStream iterV() {
+        return new PetPetStream(values().iterator());
+    }
+
     @PetPetWhitelist
     public PetPetTableView<K, V> view() {
         return new PetPetTableView<>(this);
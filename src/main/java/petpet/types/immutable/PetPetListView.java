@@ -36,6 +36,7 @@ public class PetPetListView<T> extends PetPetList<T> {
         allowMethod("eachI");
         allowMethod("foldL");
         allowMethod("foldR");
+        allowMethod("iter");
     }
 
     private static void allowMethod(String name) {
@@ -37,6 +37,8 @@ public class PetPetTableView<K, V> extends PetPetTable<K, V> {
         allowMethod("each");
         allowMethod("eachK");
         allowMethod("eachV");
+        allowMethod("iterK");
+        allowMethod("iterV");
 
         allowMethod("size");
         allowMethod("has");
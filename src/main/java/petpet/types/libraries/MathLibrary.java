@@ -79,6 +79,56 @@ public class MathLibrary {
     private static final JavaFunction TANH = new JavaFunction(Math.class, "tanh", false);
 
 
+    //Functions that script calls like math:sin(x) are compiled to MATH_CALL for, by index.
+    //The interpreter checks that it's still calling the same function, then uses computeIntrinsic().
+    public static final JavaFunction[] INTRINSICS = {
+            MIN, MAX, ABS, FLOOR, CEIL, EXP, POW, ROUND, LOG, LN, SQRT, CBRT, RAD, DEG,
+            SIN, ASIN, SINH, COS, ACOS, COSH, TAN, ATAN, ATAN2, TANH
+    };
+    public static final String[] INTRINSIC_NAMES = {
+            "min", "max", "abs", "floor", "ceil", "exp", "pow", "round", "log", "ln", "sqrt", "cbrt", "rad", "deg",
+            "sin", "asin", "sinh", "cos", "acos", "cosh", "tan", "atan", "atan2", "tanh"
+    };
+
+    //Index into INTRINSICS, or -1 if there's no intrinsic of that name
+    public static int intrinsicId(String name) {
+        for (int i = 0; i < INTRINSIC_NAMES.length; i++)
+            if (INTRINSIC_NAMES[i].equals(name))
+                return i;
+        return -1;
+    }
+
+    //b is ignored by the 1-arg functions
+    public static double computeIntrinsic(int id, double a, double b) {
+        return switch (id) {
+            case 0 -> Math.min(a, b);
+            case 1 -> Math.max(a, b);
+            case 2 -> Math.abs(a);
+            case 3 -> Math.floor(a);
+            case 4 -> Math.ceil(a);
+            case 5 -> Math.exp(a);
+            case 6 -> Math.pow(a, b);
+            case 7 -> Math.round(a);
+            case 8 -> Math.log10(a);
+            case 9 -> Math.log(a);
+            case 10 -> Math.sqrt(a);
+            case 11 -> Math.cbrt(a);
+            case 12 -> Math.toRadians(a);
+            case 13 -> Math.toDegrees(a);
+            case 14 -> Math.sin(a);
+            case 15 -> Math.asin(a);
+            case 16 -> Math.sinh(a);
+            case 17 -> Math.cos(a);
+            case 18 -> Math.acos(a);
+            case 19 -> Math.cosh(a);
+            case 20 -> Math.tan(a);
+            case 21 -> Math.atan(a);
+            case 22 -> Math.atan2(a, b);
+            case 23 -> Math.tanh(a);
+            default -> throw new IllegalArgumentException("No math intrinsic " + id);
+        };
+    }
+
     public static double randIn(double min, double max) {
         return Math.random() * (max - min) + min;
     }
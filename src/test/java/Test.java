@@ -1,10 +1,42 @@
+import petpet.external.CompileCache;
+import petpet.external.PetPetBundle;
 import petpet.external.PetPetInstance;
+import petpet.external.PetPetSnapshot;
 import petpet.external.PetPetWhitelist;
-import petpet.lang.run.PetPetCallable;
+import petpet.lang.compile.Compiler;
+import petpet.lang.run.*;
+import petpet.types.PetPetList;
+import petpet.types.PetPetTable;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class Test {
 
     public static void main(String[] args) throws Exception {
+        //pmap and friends only go parallel with more than one worker, so make sure
+        //there are some even on one cpu. Has to happen before the pool is first used.
+        System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism", "4");
+
+        testParallelUpvalues();
+        testParallelCollections();
+        testListIndexing();
+        testMathHooks();
+        testSlicing();
+        testShiftsAndTableKeys();
+        testForAsOperand();
+        testGenerators();
+        testBundles();
+        testCompileCache();
+        testSnapshots();
+        testAsync();
+        testBatch();
+        testTailCalls();
+        testInlining();
+        testConst();
+        testIntegerArithmetic();
 
         PetPetInstance instance = new PetPetInstance();
 
@@ -58,6 +90,274 @@ public class Test {
         }
     }
 
+    private static void testForAsOperand() throws Exception {
+        PetPetInstance instance = new PetPetInstance();
+
+        //The counter has to end up in its own slot even with other values already on the stack
+        String script = """
+                print(for i in 0..3 i) //prints 2
+                y = 10 + for i in 0..3 i
+                fn sum(n) 1 + for i in 0..n i
+                ![y, sum(4)]
+                """;
+
+        Object result = instance.runScript("forAsOperand", script);
+        System.out.println(java.util.List.of(12L, 4L).equals(result) ? "ok" : "wrong: " + result);
+    }
+
+    private static void testParallelUpvalues() throws Exception {
+        PetPetInstance instance = new PetPetInstance();
+
+        //k is still open on the caller's stack when the forks read it
+        String script = """
+                l = ![]
+                for i in 0..2000 l.push(i)
+                k = 2
+                l.copy().pmap(fn(x) x * k).foldL(0, fn(a, b) a + b)
+                """;
+
+        Object result = instance.runScript("parallelUpvalues", script);
+        System.out.println(Long.valueOf(3998000).equals(result) ? "ok" : "wrong: " + result);
+    }
+
+    private static void testParallelCollections() throws Exception {
+        PetPetInstance instance = new PetPetInstance();
+
+        //Same results as the sequential versions, math calls included
+        String script = """
+                l = ![]
+                for i in 0..2000 l.push(i)
+                sum = fn(a, b) a + b
+                ![
+                    l.copy().pmap(fn(x) math:sin(x)).foldL(0, sum) == l.copy().map(fn(x) math:sin(x)).foldL(0, sum),
+                    l.copy().pfilter(fn(x) x % 3 == 0).len()
+                ]
+                """;
+        PetPetList<?> result = (PetPetList<?>) instance.runScript("parallelCollections", script);
+        System.out.println(java.util.List.of(true, 667L).equals(result) ? "ok" : "wrong: " + result);
+
+        //Calling the math library doesn't stop a function from going parallel
+        Object sin = instance.runScript("pureMath", "fn(x) math:sin(x)");
+        System.out.println(((PetPetClosure) sin).isPure() ? "ok" : "wrong: not pure");
+
+        try {
+            instance.runScript("badFilter", "l = ![] for i in 0..2000 l.push(i) l.pfilter(fn(x) x)");
+            System.out.println("wrong: no error");
+        } catch (PetPetException e) {
+            System.out.println(e.getMessage().startsWith("list.pfilter() expects function to return a boolean") ? "ok" : "wrong: " + e.getMessage());
+        }
+    }
+
+    private static void testListIndexing() throws Exception {
+        PetPetInstance instance = new PetPetInstance();
+
+        //Indices too big for an int stay out of range instead of wrapping around
+        Object result = instance.runScript("bigIndex", "l = ![7, 8, 9] ![l[4294967297], l[-4294967297], l[-1]]");
+        System.out.println(java.util.Arrays.asList(null, null, 9L).equals(result) ? "ok" : "wrong: " + result);
+
+        try {
+            instance.runScript("bigSet", "l = ![7, 8, 9] l[4294967296] = 5");
+            System.out.println("wrong: no error");
+        } catch (PetPetException e) {
+            System.out.println(e.getMessage().startsWith("Attempt to set in list of length 3") ? "ok" : "wrong: " + e.getMessage());
+        }
+    }
+
+    private static void testMathHooks() throws Exception {
+        PetPetInstance instance = new PetPetInstance();
+
+        //Math calls skip looking up the function, unless that lookup would find something else
+        Object result = instance.runScript("mathHooks", """
+                a = math:sin(0)
+                math.class().methods()["__get_str"] = fn(k) fn(x) "hooked"
+                ![a, math:sin(0)]
+                """);
+        System.out.println(java.util.List.of(0.0, "hooked").equals(result) ? "ok" : "wrong: " + result);
+    }
+
+    private static void testSlicing() throws Exception {
+        PetPetInstance instance = new PetPetInstance();
+
+        //Suspends every so often, and ends up with the same result as a regular call
+        PetPetClosure sum = (PetPetClosure) instance.runScript("slicing", "fn(n) { s = 0 for i in 0..n s = s + i s }");
+        Continuation continuation = sum.callSliced(100, 1000L);
+        int slices = 1;
+        while (!continuation.resume(100))
+            slices++;
+        System.out.println(Long.valueOf(499500).equals(continuation.getResult()) && slices > 10 ? "ok" : "wrong: " + continuation.getResult() + " in " + slices + " slices");
+
+        //The max cost still applies across slices
+        instance.interpreter.maxCost = instance.interpreter.cost + 500;
+        try {
+            continuation = sum.callSliced(100, 1000L);
+            while (!continuation.resume(100));
+            System.out.println("wrong: no error");
+        } catch (PetPetException e) {
+            System.out.println(e.getMessage().startsWith("Hit the max allowed instructions") ? "ok" : "wrong: " + e.getMessage());
+        }
+    }
+
+    private static void testShiftsAndTableKeys() throws Exception {
+        PetPetInstance instance = new PetPetInstance();
+
+        //Shifting by 64 or more shifts everything out, and negative amounts shift the other way
+        String script = """
+                big = 64
+                ![1 << 64, 1 << big, -8 >> big, 1 << -1, -8 >> -1, 3 << 2]
+                """;
+        Object result = instance.runScript("shifts", script);
+        System.out.println(java.util.List.of(0L, 0L, -1L, 0L, -16L, 12L).equals(result) ? "ok" : "wrong: " + result);
+
+        //Integral doubles put in from java are found by integer keys, however they got there
+        PetPetTable<Object, Object> table = new PetPetTable<>();
+        table.putAll(java.util.Map.of(1.0, "a"));
+        table.putIfAbsent(2.0, "b");
+        table.computeIfAbsent(3.0, k -> "c");
+        table.merge(4.0, "d", (x, y) -> y);
+        instance.setGlobal("table", table);
+        result = instance.runScript("tableKeys", "![table[1], table[2], table[3], table[4]]");
+        System.out.println(java.util.List.of("a", "b", "c", "d").equals(result) ? "ok" : "wrong: " + result);
+    }
+
+    private static void testGenerators() throws Exception {
+        PetPetInstance instance = new PetPetInstance();
+
+        String script = """
+                fn squares(n) for i in 0..n yield i * i
+                gen = squares(5)
+                sum = 0
+                while !gen.done() sum = sum + gen.next()
+                sum
+                """;
+        Object result = instance.runScript("generators", script);
+        System.out.println(Long.valueOf(30).equals(result) ? "ok" : "wrong: " + result);
+    }
+
+    private static void testBundles() throws Exception {
+        PetPetInstance instance = new PetPetInstance();
+
+        //Written out and read back, a function runs the same, and isn't decoded until it's called
+        PetPetFunction function = instance.compileFunction("bundled", "fn twice(x) x * 2 twice(21)");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PetPetBundle.Writer().add("bundled", function).write(out);
+        PetPetBundle bundle = PetPetBundle.wrap(ByteBuffer.wrap(out.toByteArray()));
+        PetPetFunction loaded = bundle.getFunction("bundled");
+        boolean lazy = !loaded.isMaterialized();
+        Object result = new PetPetClosure(loaded, instance.interpreter).call();
+        System.out.println(lazy && Long.valueOf(42).equals(result) ? "ok" : "wrong: " + result + (lazy ? "" : ", decoded early"));
+    }
+
+    private static void testCompileCache() throws Exception {
+        CompileCache cache = new CompileCache(10);
+        PetPetInstance first = new PetPetInstance(), second = new PetPetInstance(), unoptimized = new PetPetInstance();
+        first.compileCache = second.compileCache = unoptimized.compileCache = cache;
+        unoptimized.optimize = false;
+
+        //Instances sharing the cache share what it compiled, but optimized and unoptimized code are kept apart
+        String source = "x = 1 + 2 x";
+        PetPetFunction compiled = first.compileFunction("cached", source);
+        boolean shared = second.compileFunction("cached", source) == compiled;
+        boolean separate = unoptimized.compileFunction("cached", source) != compiled;
+        System.out.println(shared && separate && cache.hits() == 1 ? "ok" : "wrong: " + cache);
+    }
+
+    private static void testSnapshots() throws Exception {
+        PetPetInstance base = new PetPetInstance();
+        base.setGlobal("settings", base.runScript("setup", "$[volume = 1]"));
+        PetPetSnapshot snapshot = base.freeze();
+
+        //Each instance gets its own copy of the snapshot's globals
+        PetPetInstance a = new PetPetInstance(snapshot), b = new PetPetInstance(snapshot);
+        a.runScript("edit", "settings.volume = 5");
+        Object result = b.runScript("read", "settings.volume");
+        System.out.println(Long.valueOf(1).equals(result) ? "ok" : "wrong: " + result);
+    }
+
+    private static void testAsync() throws Exception {
+        PetPetInstance instance = new PetPetInstance();
+        instance.setGlobal("fetch", new JavaFunction(false, 1) {
+            @Override
+            public Object invoke(Object arg0) {
+                return CompletableFuture.supplyAsync(() -> ((Number) arg0).longValue() * 2);
+            }
+        }.async());
+
+        //The script is parked while it waits, and picks up where it left off
+        PetPetClosure script = (PetPetClosure) instance.runScript("async", "fn(n) { sum = 0 for i in 0..n sum = sum + fetch(i) sum }");
+        Object result = script.callAsync(10L).get(10, TimeUnit.SECONDS);
+        System.out.println(Long.valueOf(90).equals(result) ? "ok" : "wrong: " + result);
+    }
+
+    private static void testBatch() throws Exception {
+        PetPetInstance instance = new PetPetInstance();
+
+        //One call per row, with the args taken from the columns
+        PetPetClosure closure = (PetPetClosure) instance.runScript("batch", "fn(a, b) a * b + 1");
+        Object[] results = new Object[3];
+        closure.batch().run(new double[][] {{1, 2, 3}, {4, 5, 6}}, results);
+        System.out.println(java.util.List.of(5.0, 11.0, 19.0).equals(java.util.Arrays.asList(results)) ? "ok" : "wrong: " + java.util.Arrays.toString(results));
+    }
+
+    private static void testTailCalls() throws Exception {
+        PetPetInstance instance = new PetPetInstance();
+
+        //Far deeper than maxStackFrames, which tail calls don't use up
+        String script = """
+                fn count(n, acc) if n == 0 acc else count(n - 1, acc + 1)
+                count(10000, 0)
+                """;
+        Object result = instance.runScript("tailCalls", script);
+        System.out.println(Long.valueOf(10000).equals(result) ? "ok" : "wrong: " + result);
+    }
+
+    private static void testInlining() throws Exception {
+        //Once get() is inlined into use(), errors inside it still say so
+        String script = """
+                fn get(x) x.foo
+                fn use(x) {
+                    y = get(x)
+                    y
+                }
+                t = $[foo = 1]
+                for i in 0..300 use(t)
+                use(null)
+                """;
+        String[] traces = new String[2];
+        for (int i = 0; i < 2; i++) {
+            PetPetInstance instance = new PetPetInstance();
+            if (i == 1)
+                instance.interpreter.inlineThreshold = 0;
+            try {
+                instance.runScript("inlining", script);
+            } catch (PetPetException e) {
+                traces[i] = e.getMessage();
+            }
+        }
+        System.out.println(traces[0] != null && traces[0].contains("inside fn get") && traces[0].equals(traces[1]) ? "ok" : "wrong: " + traces[0]);
+    }
+
+    private static void testConst() throws Exception {
+        PetPetInstance instance = new PetPetInstance();
+
+        Object result = instance.runScript("const", "const N = 4 fn twice() N * 2 twice()");
+        System.out.println(Long.valueOf(8).equals(result) ? "ok" : "wrong: " + result);
+
+        try {
+            instance.runScript("assignConst", "const N = 4 N = 5");
+            System.out.println("wrong: no error");
+        } catch (Compiler.CompilationException e) {
+            System.out.println(e.getMessage().startsWith("Cannot assign to const") ? "ok" : "wrong: " + e.getMessage());
+        }
+    }
+
+    private static void testIntegerArithmetic() throws Exception {
+        PetPetInstance instance = new PetPetInstance();
+
+        //Integers stay integers until the result can't be one
+        Object result = instance.runScript("integers", "![6 / 2, 7 / 2, 9223372036854775807 + 1, 5 % 3, 1.5 + 1]");
+        System.out.println(java.util.List.of(3L, 3.5, 9.223372036854775807E18, 2L, 2.5).equals(result) ? "ok" : "wrong: " + result);
+    }
+
     @PetPetWhitelist
     public static class Vec3 {
         @PetPetWhitelist